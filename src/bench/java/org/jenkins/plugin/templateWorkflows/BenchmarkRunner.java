@@ -0,0 +1,26 @@
+package org.jenkins.plugin.templateWorkflows;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the benchmarks with the GC profiler, so allocation rates (gc.alloc.rate.norm, bytes per operation)
+ * are reported next to the timings.
+ * Run through the <code>benchmarks</code> Maven profile, the only argument is a regular expression of the benchmarks to run.
+ */
+public final class BenchmarkRunner {
+
+	private BenchmarkRunner() {
+	}
+
+	public static void main(final String[] args) throws RunnerException {
+		final Options options = new OptionsBuilder()
+				.include(args.length > 0 ? args[0] : BenchmarkRunner.class.getPackage().getName() + ".*Benchmark")
+				.addProfiler(GCProfiler.class)
+				.build();
+		new Runner(options).run();
+	}
+}
@@ -0,0 +1,107 @@
+package org.jenkins.plugin.templateWorkflows;
+
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The lookups behind getRelatedJobs, getTemplateNames and validateJobName, over item trees of realistic size,
+ * and the full reindex done when Jenkins has loaded its items.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class NameIndexBenchmark {
+
+	private static final int TEMPLATES = 50;
+
+	@Param({ "1000", "10000", "50000" })
+	public int jobs;
+
+	private List<String> fullNames;
+	private String[] shortNames;
+	private JobNameIndex nameIndex;
+	private TemplateRegistry registry;
+	private int next;
+
+	@Setup
+	public void setUp() {
+		this.fullNames = SyntheticConfigs.itemTree(this.jobs);
+		this.shortNames = new String[this.fullNames.size()];
+		for (int i = 0; i < this.shortNames.length; i++) {
+			final String fullName = this.fullNames.get(i);
+			this.shortNames[i] = fullName.substring(fullName.lastIndexOf('/') + 1).toUpperCase();
+		}
+		this.nameIndex = new JobNameIndex();
+		this.registry = new TemplateRegistry();
+		index(this.nameIndex, this.registry);
+	}
+
+	private void index(final JobNameIndex nameIndex, final TemplateRegistry registry) {
+		for (int i = 0; i < this.fullNames.size(); i++) {
+			final String fullName = this.fullNames.get(i);
+			nameIndex.add(fullName);
+			// One job in ten is a building block, a few belong to two templates.
+			if (i % 10 == 0) registry.update(fullName, "Template " + (i / 10 % TEMPLATES) + (i % 70 == 0 ? ", Shared" : ""));
+		}
+		nameIndex.markLoaded();
+		registry.markLoaded();
+	}
+
+	private int next() {
+		final int i = this.next;
+		this.next = i + 1 < this.shortNames.length ? i + 1 : 0;
+		return i;
+	}
+
+	@Benchmark
+	public Set<String> lookupHit() {
+		return this.nameIndex.lookup(this.shortNames[next()]);
+	}
+
+	@Benchmark
+	public boolean lookupMiss() {
+		return this.nameIndex.contains(this.shortNames[next()] + "-new");
+	}
+
+	@Benchmark
+	public Set<String> jobsOfTemplate() {
+		return this.registry.getJobNames("template " + (next() % TEMPLATES));
+	}
+
+	@Benchmark
+	public Set<String> templateNames() {
+		return this.registry.getTemplateNames();
+	}
+
+	@Benchmark
+	public boolean isBuildingBlock() {
+		return this.registry.isBuildingBlock(this.fullNames.get(next()));
+	}
+
+	@Benchmark
+	@BenchmarkMode(Mode.SingleShotTime)
+	@OutputTimeUnit(TimeUnit.MILLISECONDS)
+	@Warmup(iterations = 10)
+	@Measurement(iterations = 20)
+	public TemplateRegistry reindex() {
+		final TemplateRegistry registry = new TemplateRegistry();
+		index(new JobNameIndex(), registry);
+		return registry;
+	}
+}
@@ -0,0 +1,98 @@
+package org.jenkins.plugin.templateWorkflows;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * What createOrUpdate and getTemplateParamaters spend per building block config:
+ * scanning it for parameters and job names, compiling it, and rendering a compiled one, to a String or as a stream.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RenderBenchmark {
+
+	@Param({ "10240", "262144", "2097152" })
+	public int sizeBytes;
+
+	@Param({ "5", "100" })
+	public int placeholders;
+
+	@Param({ "5", "50" })
+	public int jobNames;
+
+	private String xml;
+	private List<String> templateJobNames;
+	private TemplateMatcher matcher;
+	private CompiledTemplate compiled;
+	private Map<String, String> parameterValues;
+	private Map<String, String> jobNameValues;
+
+	@Setup
+	public void setUp() {
+		this.templateJobNames = SyntheticConfigs.jobNames(this.jobNames);
+		this.xml = SyntheticConfigs.config(this.sizeBytes, this.placeholders, this.templateJobNames);
+		this.matcher = new TemplateMatcher(this.templateJobNames);
+		this.compiled = CompiledTemplate.compile(this.xml, this.matcher);
+		this.parameterValues = SyntheticConfigs.parameterValues(this.placeholders);
+		this.jobNameValues = SyntheticConfigs.jobNameValues(this.templateJobNames);
+	}
+
+	@Benchmark
+	public List<TemplateMatcher.Slot> scan() {
+		return this.matcher.scan(this.xml);
+	}
+
+	/**
+	 * A cache miss: a new or changed building block, with the matcher for its job names already built.
+	 */
+	@Benchmark
+	public CompiledTemplate compile() {
+		return CompiledTemplate.compile(this.xml, this.matcher);
+	}
+
+	/**
+	 * A cache miss for a set of job names never seen before, including building the automaton.
+	 */
+	@Benchmark
+	public CompiledTemplate compileWithNewMatcher() {
+		return CompiledTemplate.compile(this.xml, this.templateJobNames);
+	}
+
+	@Benchmark
+	public String render() {
+		return this.compiled.render(this.parameterValues, this.jobNameValues);
+	}
+
+	/**
+	 * What createProjectFromXML and updateByXml read from, drained without keeping anything.
+	 */
+	@Benchmark
+	public long renderStream() throws IOException {
+		final byte[] buffer = new byte[8192];
+		final InputStream in = this.compiled.openStream(this.parameterValues, this.jobNameValues);
+		long total = 0;
+		for (int n = in.read(buffer); n >= 0; n = in.read(buffer)) {
+			total += n;
+		}
+		return total;
+	}
+}
@@ -0,0 +1,97 @@
+package org.jenkins.plugin.templateWorkflows;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Generates config.xml files and item trees shaped like real ones, without Jenkins.
+ * Everything is seeded so runs are comparable.
+ */
+final class SyntheticConfigs {
+
+	private SyntheticConfigs() {
+	}
+
+	static List<String> jobNames(final int count) {
+		final List<String> ret = new ArrayList<String>(count);
+		for (int i = 0; i < count; i++) {
+			ret.add("template-job-" + i);
+		}
+		return ret;
+	}
+
+	static Map<String, String> parameterValues(final int placeholders) {
+		final Map<String, String> ret = new HashMap<String, String>();
+		for (int i = 0; i < placeholders; i++) {
+			ret.put("PARAM_" + i, "value-" + i + (i % 7 == 0 ? " & more" : ""));
+		}
+		return ret;
+	}
+
+	static Map<String, String> jobNameValues(final List<String> jobNames) {
+		final Map<String, String> ret = new HashMap<String, String>();
+		for (final String name : jobNames) {
+			ret.put(name, "instance-" + name);
+		}
+		return ret;
+	}
+
+	/**
+	 * @return a freestyle like config of about sizeBytes, with every placeholder and job name used at least once.
+	 */
+	static String config(final int sizeBytes, final int placeholders, final List<String> jobNames) {
+		final Random random = new Random(sizeBytes * 31 + placeholders * 7 + jobNames.size());
+		final StringBuilder sb = new StringBuilder(sizeBytes + 4096);
+		sb.append("<?xml version='1.0' encoding='UTF-8'?>\n<project>\n  <description>Generated for benchmarks</description>\n");
+		sb.append("  <keepDependencies>false</keepDependencies>\n  <properties/>\n  <builders>\n");
+
+		int p = 0;
+		int j = 0;
+		while (sb.length() < sizeBytes - 256 || p < placeholders || j < jobNames.size()) {
+			switch (random.nextInt(4)) {
+			case 0:
+				sb.append("    <hudson.tasks.Shell>\n      <command>cd @@PARAM_").append(p++ % placeholders).append("@@ &amp;&amp; make all TARGET=@@PARAM_")
+						.append(p++ % placeholders).append("@@\n</command>\n    </hudson.tasks.Shell>\n");
+				break;
+			case 1:
+				sb.append("    <hudson.plugins.parameterizedtrigger.TriggerBuilder>\n      <projects>").append(jobNames.get(j++ % jobNames.size())).append(", ")
+						.append(jobNames.get(j++ % jobNames.size())).append("</projects>\n    </hudson.plugins.parameterizedtrigger.TriggerBuilder>\n");
+				break;
+			case 2:
+				sb.append("    <hudson.plugins.copyartifact.CopyArtifact>\n      <projectName>").append(jobNames.get(j++ % jobNames.size()))
+						.append("</projectName>\n      <filter>**/*.jar</filter>\n    </hudson.plugins.copyartifact.CopyArtifact>\n");
+				break;
+			default:
+				sb.append("    <hudson.tasks.Ant>\n      <targets>clean dist</targets>\n      <antName>ant-1.8</antName>\n");
+				sb.append("      <properties>build.number=$BUILD_NUMBER\nsvn.revision=$SVN_REVISION\nlabel=nightly-").append(random.nextInt(100000))
+						.append("</properties>\n    </hudson.tasks.Ant>\n");
+				break;
+			}
+		}
+
+		sb.append("  </builders>\n  <publishers/>\n  <buildWrappers/>\n</project>\n");
+		return sb.toString();
+	}
+
+	/**
+	 * @return full names of count jobs spread over nested folders, as "folder-3/folder-3-1/job-42".
+	 */
+	static List<String> itemTree(final int count) {
+		final Random random = new Random(count);
+		final List<String> ret = new ArrayList<String>(count);
+		for (int i = 0; i < count; i++) {
+			final StringBuilder sb = new StringBuilder();
+			final int depth = random.nextInt(3);
+			String folder = "folder-" + random.nextInt(20);
+			for (int d = 0; d < depth; d++) {
+				sb.append(folder).append('/');
+				folder = folder + "-" + random.nextInt(10);
+			}
+			ret.add(sb.append("job-").append(i).toString());
+		}
+		return ret;
+	}
+}
@@ -0,0 +1,419 @@
+package org.jenkins.plugin.templateWorkflows;
+
+import hudson.model.Job;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.locks.Lock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import net.sf.json.JSONArray;
+import net.sf.json.JSONException;
+import net.sf.json.JSONObject;
+
+import org.apache.commons.lang.StringUtils;
+
+/**
+ * Creates many instances of one template from a matrix, one row per instance.
+ * <p>
+ * JSON: <code>{"template": "T", "instances": [{"name": "a", "jobs": {"build": "a-build"}, "parameters": {"BRANCH": "a"}, "computed": ["URL"]}]}</code><br>
+ * CSV (template given as the <code>template</code> request parameter): a header row of <code>instance</code>,
+ * <code>job:&lt;building block name&gt;</code> for every building block and the parameter names, then one row per instance.
+ * A parameter column named <code>computed:&lt;parameter name&gt;</code> marks the parameter computed for every row.
+ * Values of computed parameters are expressions, see {@link ComputedParameters}; all others are used as they are.
+ * <p>
+ * Generated job names must not be taken by existing jobs unless <code>allowExisting</code> is asked for, then those jobs are used as they are,
+ * as with the "allow existing job names" box of the form.
+ * <p>
+ * The whole matrix is checked before anything is created, the building blocks are read and parsed once for all rows,
+ * then the instances are created by a {@link TemplateswWorkflowRun}; jobs are created in batches of <code>org.jenkins.plugin.templateWorkflows.BulkInstanceCreator.batchSize</code> rows (25 by default)
+ * so that other updates get a turn in between, and the instances are written once at the end.
+ */
+final class BulkInstanceCreator {
+
+	private static final Logger LOGGER = Logger.getLogger(BulkInstanceCreator.class.getName());
+
+	static final int BATCH_SIZE = Math.max(1, Integer.getInteger(BulkInstanceCreator.class.getName() + ".batchSize", 25));
+
+	static final String JOB_COLUMN_PREFIX = "job:";
+	static final String COMPUTED_COLUMN_PREFIX = "computed:";
+
+	static final class Row {
+		// 1 based, in the input, for messages
+		final int number;
+		final String instanceName;
+		// building block name -> generated job name
+		final Map<String, String> jobs = new HashMap<String, String>();
+		final Map<String, String> parameters = new HashMap<String, String>();
+		// names of the parameters whose values are expressions
+		final Set<String> computed = new HashSet<String>();
+
+		Row(final int number, final String instanceName) {
+			this.number = number;
+			this.instanceName = StringUtils.trimToEmpty(instanceName);
+		}
+	}
+
+	private final TemplatesWorkflowJob workflowJob;
+	private final String templateName;
+	private final List<Job> relatedJobs;
+	// building block name -> its parsed config
+	private final Map<String, CompiledTemplate> compiled = new LinkedHashMap<String, CompiledTemplate>();
+	private final Set<String> parameterNames = new TreeSet<String>();
+	private final boolean allowExisting;
+	private List<Row> rows;
+
+	private BulkInstanceCreator(final TemplatesWorkflowJob workflowJob, final String templateName, final boolean allowExisting) throws IOException {
+		this.workflowJob = workflowJob;
+		this.templateName = templateName;
+		this.allowExisting = allowExisting;
+		this.relatedJobs = workflowJob.lookupRelatedJobs(templateName);
+		for (final Job job : this.relatedJobs) {
+			final CompiledTemplate template = workflowJob.getCompiledTemplate(templateName, job, TemplatesWorkflowJob.getJobNames(this.relatedJobs));
+			this.compiled.put(job.getName(), template);
+			this.parameterNames.addAll(template.getParameters());
+		}
+	}
+
+	/**
+	 * Reads and checks the whole matrix, nothing is created.
+	 * @param allowExisting whether generated job names may be those of existing jobs, which are then used as they are.
+	 * @param errors filled with everything wrong with the matrix.
+	 * @return what creates the instances with {@link #create}, null if there are errors.
+	 */
+	static BulkInstanceCreator prepare(final TemplatesWorkflowJob workflowJob, final String contentType, final String templateParam, final String body,
+			final boolean allowExisting, final List<String> errors) throws IOException {
+		String templateName = templateParam;
+		List<Row> rows = new ArrayList<Row>();
+		try {
+			if (contentType != null && contentType.toLowerCase(Locale.ENGLISH).contains("csv")) {
+				rows = parseCsv(body, errors);
+			}
+			else {
+				final JSONObject json = JSONObject.fromObject(body);
+				if (StringUtils.isBlank(templateName)) templateName = json.optString("template", null);
+				rows = parseJson(json, errors);
+			}
+		}
+		catch (final JSONException e) {
+			errors.add("Not valid JSON: " + e.getMessage());
+		}
+
+		if (StringUtils.isBlank(templateName)) {
+			errors.add("No template given");
+			return null;
+		}
+		if (!errors.isEmpty()) return null;
+
+		final BulkInstanceCreator creator = new BulkInstanceCreator(workflowJob, templateName.trim(), allowExisting);
+		creator.validate(rows, errors);
+		if (!errors.isEmpty()) return null;
+
+		creator.rows = rows;
+		return creator;
+	}
+
+	String getTemplateName() {
+		return this.templateName;
+	}
+
+	int size() {
+		return this.rows.size();
+	}
+
+	/**
+	 * @return <code>{result: false, errors: [...]}</code>
+	 */
+	static JSONObject failure(final List<String> errors) {
+		final JSONObject ret = new JSONObject();
+		ret.put("result", false);
+		ret.put("errors", JSONArray.fromObject(errors));
+		return ret;
+	}
+
+	static List<Row> parseJson(final JSONObject json, final List<String> errors) {
+		final List<Row> rows = new ArrayList<Row>();
+		final JSONArray instances = json.optJSONArray("instances");
+		if (instances == null) {
+			errors.add("No 'instances' array");
+			return rows;
+		}
+
+		for (int i = 0; i < instances.size(); i++) {
+			final JSONObject o = instances.getJSONObject(i);
+			final Row row = new Row(i + 1, o.optString("name", ""));
+			copy(o.optJSONObject("jobs"), row.jobs);
+			copy(o.optJSONObject("parameters"), row.parameters);
+			final JSONArray computed = o.optJSONArray("computed");
+			if (computed != null) {
+				for (int c = 0; c < computed.size(); c++) {
+					row.computed.add(computed.getString(c));
+				}
+			}
+			rows.add(row);
+		}
+		return rows;
+	}
+
+	private static void copy(final JSONObject from, final Map<String, String> to) {
+		if (from == null || from.isNullObject()) return;
+		for (final Iterator<?> i = from.keys(); i.hasNext();) {
+			final String key = String.valueOf(i.next());
+			to.put(key, from.optString(key, ""));
+		}
+	}
+
+	static List<Row> parseCsv(final String body, final List<String> errors) {
+		final List<Row> rows = new ArrayList<Row>();
+		final List<List<String>> records = readCsv(body);
+		if (records.isEmpty()) {
+			errors.add("No header row");
+			return rows;
+		}
+
+		final List<String> header = records.get(0);
+		if (header.isEmpty() || !"instance".equalsIgnoreCase(header.get(0).trim())) {
+			errors.add("The first column has to be 'instance'");
+			return rows;
+		}
+
+		for (int r = 1; r < records.size(); r++) {
+			final List<String> record = records.get(r);
+			if (record.size() == 1 && record.get(0).trim().length() == 0) continue; // Blank line.
+			if (record.size() != header.size()) {
+				errors.add("Row " + r + ": " + record.size() + " columns, the header has " + header.size());
+				continue;
+			}
+
+			final Row row = new Row(r, record.get(0));
+			for (int c = 1; c < header.size(); c++) {
+				final String column = header.get(c).trim();
+				if (column.startsWith(JOB_COLUMN_PREFIX)) {
+					row.jobs.put(column.substring(JOB_COLUMN_PREFIX.length()).trim(), record.get(c));
+				}
+				else if (column.startsWith(COMPUTED_COLUMN_PREFIX)) {
+					final String p = column.substring(COMPUTED_COLUMN_PREFIX.length()).trim();
+					row.parameters.put(p, record.get(c));
+					row.computed.add(p);
+				}
+				else {
+					row.parameters.put(column, record.get(c));
+				}
+			}
+			rows.add(row);
+		}
+		return rows;
+	}
+
+	/**
+	 * RFC 4180: comma separated, fields may be quoted, "" is a quote within a quoted field.
+	 */
+	static List<List<String>> readCsv(final String text) {
+		final List<List<String>> records = new ArrayList<List<String>>();
+		List<String> record = new ArrayList<String>();
+		final StringBuilder field = new StringBuilder();
+		boolean quoted = false;
+		boolean any = false;
+
+		for (int i = 0; i < text.length(); i++) {
+			final char c = text.charAt(i);
+			any = true;
+			if (quoted) {
+				if (c == '"') {
+					if (i + 1 < text.length() && text.charAt(i + 1) == '"') {
+						field.append('"');
+						i++;
+					}
+					else {
+						quoted = false;
+					}
+				}
+				else {
+					field.append(c);
+				}
+			}
+			else if (c == '"') {
+				quoted = true;
+			}
+			else if (c == ',') {
+				record.add(field.toString());
+				field.setLength(0);
+			}
+			else if (c == '\n' || c == '\r') {
+				if (c == '\r' && i + 1 < text.length() && text.charAt(i + 1) == '\n') i++;
+				record.add(field.toString());
+				field.setLength(0);
+				records.add(record);
+				record = new ArrayList<String>();
+				any = false;
+			}
+			else {
+				field.append(c);
+			}
+		}
+		if (any) {
+			record.add(field.toString());
+			records.add(record);
+		}
+		return records;
+	}
+
+	void validate(final List<Row> rows, final List<String> errors) {
+		if (this.relatedJobs.isEmpty()) {
+			errors.add("Template '" + this.templateName + "' has no building blocks");
+			return;
+		}
+		if (rows.isEmpty()) {
+			errors.add("No instances given");
+			return;
+		}
+
+		checkRows(rows, this.templateName, this.compiled.keySet(), this.parameterNames, errors);
+		for (final Row row : rows) {
+			final JSONObject instanceCheck = this.workflowJob.validateTemplateName(row.instanceName);
+			if (!instanceCheck.optBoolean("result")) errors.add(prefix(row) + instanceCheck.optString("msg"));
+
+			for (final String blockName : this.compiled.keySet()) {
+				final String jobName = row.jobs.get(blockName);
+				if (jobName == null || jobName.length() == 0) continue;
+
+				final JSONObject jobCheck = this.workflowJob.validateJobName(jobName, this.allowExisting);
+				if (!jobCheck.optBoolean("result")) errors.add(prefix(row) + jobCheck.optString("msg"));
+			}
+		}
+	}
+
+	/**
+	 * The checks of the matrix that do not need Jenkins: names given more than once, missing or unknown parameters and building blocks,
+	 * and computed parameters that refer to each other in a cycle. Generated job names are trimmed in place.
+	 * @param blockNames building block names of the template.
+	 * @param parameterNames parameter names of the template.
+	 */
+	static void checkRows(final List<Row> rows, final String templateName, final Set<String> blockNames, final Set<String> parameterNames,
+			final List<String> errors) {
+		final Set<String> instanceNames = new HashSet<String>();
+		final Set<String> generatedNames = new HashSet<String>();
+		for (final Row row : rows) {
+			final String prefix = prefix(row);
+
+			if (row.instanceName.length() > 0 && !instanceNames.add(row.instanceName.toLowerCase(Locale.ENGLISH))) {
+				errors.add(prefix + "instance name given more than once");
+			}
+
+			for (final String p : parameterNames) {
+				if (StringUtils.isBlank(row.parameters.get(p))) errors.add(prefix + "no value for parameter '" + p + "'");
+			}
+			for (final String p : row.parameters.keySet()) {
+				if (!parameterNames.contains(p)) errors.add(prefix + "'" + p + "' is not a parameter of template '" + templateName + "'");
+			}
+			for (final String p : row.computed) {
+				if (!parameterNames.contains(p)) errors.add(prefix + "computed '" + p + "' is not a parameter of template '" + templateName + "'");
+			}
+			try {
+				ComputedParameters.resolve(row.instanceName, row.parameters, row.computed);
+			}
+			catch (final IllegalArgumentException e) {
+				errors.add(prefix + e.getMessage());
+			}
+
+			for (final String blockName : blockNames) {
+				final String jobName = StringUtils.trimToEmpty(row.jobs.get(blockName));
+				if (jobName.length() == 0) {
+					errors.add(prefix + "no job name for building block '" + blockName + "'");
+					continue;
+				}
+				row.jobs.put(blockName, jobName);
+				if (!generatedNames.add(jobName.toLowerCase(Locale.ENGLISH))) errors.add(prefix + "job name '" + jobName + "' is used more than once");
+			}
+			for (final String blockName : row.jobs.keySet()) {
+				if (!blockNames.contains(blockName)) errors.add(prefix + "'" + blockName + "' is not a building block of template '" + templateName + "'");
+			}
+		}
+	}
+
+	private static String prefix(final Row row) {
+		return "Row " + row.number + " (" + row.instanceName + "): ";
+	}
+
+	/**
+	 * Creates the instances of the prepared matrix, blocking until all are done.
+	 * @param progress told about every instance as it finishes, may be null.
+	 * @return one result per row.
+	 */
+	List<InstanceUpdateResult> create(final UpdateProgress progress) {
+		final List<Row> rows = this.rows;
+		final List<InstanceUpdateResult> results = new ArrayList<InstanceUpdateResult>(rows.size());
+		for (int from = 0; from < rows.size(); from += BATCH_SIZE) {
+			final List<Row> batch = rows.subList(from, Math.min(rows.size(), from + BATCH_SIZE));
+			try {
+				InstanceUpdater.APPLY.acquire();
+			}
+			catch (final InterruptedException e) {
+				Thread.currentThread().interrupt();
+				for (final Row row : rows.subList(from, rows.size())) {
+					final InstanceUpdateResult result = InstanceUpdateResult.failed(row.instanceName, "Interrupted", 0);
+					if (progress != null) progress.instanceFinished(result);
+					results.add(result);
+				}
+				break;
+			}
+			try {
+				for (final Row row : batch) {
+					final InstanceUpdateResult result = create(row);
+					if (progress != null) progress.instanceFinished(result);
+					results.add(result);
+				}
+			}
+			finally {
+				InstanceUpdater.APPLY.release();
+			}
+		}
+
+		// One write for all the new instances.
+		try {
+			this.workflowJob.flushInstances();
+		}
+		catch (final IOException e) {
+			LOGGER.log(Level.WARNING, "Failed to save the workflows of " + this.workflowJob.getFullName(), e);
+		}
+		return results;
+	}
+
+	private InstanceUpdateResult create(final Row row) {
+		final long start = System.currentTimeMillis();
+		try {
+			final Lock lock = this.workflowJob.tryLock(row.instanceName);
+			try {
+				if (this.workflowJob.hasInstance(row.instanceName)) {
+					return InstanceUpdateResult.failed(row.instanceName, "Workflow already defined", System.currentTimeMillis() - start);
+				}
+
+				final Map<String, String> parameters = ComputedParameters.resolve(row.instanceName, row.parameters, row.computed);
+				final Map<String, RenderedConfig> renderedJobs = new LinkedHashMap<String, RenderedConfig>();
+				for (final Map.Entry<String, CompiledTemplate> block : this.compiled.entrySet()) {
+					renderedJobs.put(row.jobs.get(block.getKey()), new RenderedConfig(block.getValue(), parameters, row.jobs));
+				}
+				final Map<String, String> jobHashes = TemplatesWorkflowJob.hash(renderedJobs);
+				final Map<String, Boolean> isNewJobMap = this.workflowJob.apply(this.templateName, renderedJobs, jobHashes, null, true);
+				this.workflowJob.addTemplateInfo(this.templateName, row.instanceName, row.parameters, row.computed, row.jobs, isNewJobMap, jobHashes);
+				return InstanceUpdateResult.updated(row.instanceName, renderedJobs.size(), renderedJobs.size(), System.currentTimeMillis() - start);
+			}
+			finally {
+				lock.unlock();
+			}
+		}
+		catch (final Exception e) {
+			return InstanceUpdateResult.failed(row.instanceName, e.toString(), System.currentTimeMillis() - start);
+		}
+	}
+}
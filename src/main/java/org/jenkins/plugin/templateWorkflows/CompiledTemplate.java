@@ -0,0 +1,218 @@
+package org.jenkins.plugin.templateWorkflows;
+
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * A building block job's config.xml split into literal segments, @@parameter@@ slots and job name slots.
+ * Immutable, so one copy can be rendered for any number of instances, from any number of threads.
+ */
+public final class CompiledTemplate {
+
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+	private static final int STREAM_BUFFER = 8192;
+
+	private static final byte LITERAL = 0;
+	private static final byte PARAMETER_SLOT = 1;
+	private static final byte JOB_SLOT = 2;
+
+	private final byte[] kinds;
+	// literal text, or for slots the original text that is kept when no replacement is given
+	private final String[] texts;
+	// parameter or template job name, null for literals
+	private final String[] names;
+	private final Set<String> parameters;
+	private final int length;
+
+	private CompiledTemplate(final byte[] kinds, final String[] texts, final String[] names, final Set<String> parameters, final int length) {
+		this.kinds = kinds;
+		this.texts = texts;
+		this.names = names;
+		this.parameters = parameters;
+		this.length = length;
+	}
+
+	/**
+	 * @param templateJobNames names of all the building blocks of the template, references to them are turned into job name slots.
+	 */
+	public static CompiledTemplate compile(final String xml, final Collection<String> templateJobNames) {
+		return compile(xml, new TemplateMatcher(templateJobNames));
+	}
+
+	/**
+	 * @param matcher built from the names of all the building blocks of the template, can be shared by all of them.
+	 */
+	public static CompiledTemplate compile(final String xml, final TemplateMatcher matcher) {
+		final Builder builder = new Builder();
+		int pos = 0;
+		for (final TemplateMatcher.Slot slot : matcher.scan(xml)) {
+			builder.literal(xml.substring(pos, slot.start));
+			builder.slot(slot.kind == TemplateMatcher.PARAMETER ? PARAMETER_SLOT : JOB_SLOT, xml.substring(slot.start, slot.end), slot.name);
+			pos = slot.end;
+		}
+		builder.literal(xml.substring(pos));
+		return builder.build();
+	}
+
+	/**
+	 * @return the names of the @@parameters@@ in this template, sorted.
+	 */
+	public Set<String> getParameters() {
+		return this.parameters;
+	}
+
+	/**
+	 * @return the length of the template text, before any substitution.
+	 */
+	public int getLength() {
+		return this.length;
+	}
+
+	/**
+	 * Substitutes the given values in one pass, slots without a value are left as they are in the template.
+	 * Parameter values are escaped for '&', same as has always been done.
+	 */
+	public String render(final Map<String, String> parameters, final Map<String, String> jobNames) {
+		final StringBuilder sb = new StringBuilder(this.length + 256);
+		for (int i = 0; i < this.kinds.length; i++) {
+			sb.append(segment(i, parameters, jobNames));
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Same as {@link #render(Map, Map)}, UTF-8 encoded, without ever holding the whole result:
+	 * segments are encoded as they are read, through a fixed size buffer.
+	 */
+	public InputStream openStream(final Map<String, String> parameters, final Map<String, String> jobNames) {
+		return new RenderStream(parameters, jobNames);
+	}
+
+	private String segment(final int i, final Map<String, String> parameters, final Map<String, String> jobNames) {
+		switch (this.kinds[i]) {
+			case PARAMETER_SLOT: {
+				final String value = parameters.get(this.names[i]);
+				return value != null ? escape(value) : this.texts[i];
+			}
+			case JOB_SLOT: {
+				final String value = jobNames.get(this.names[i]);
+				return value != null ? value : this.texts[i];
+			}
+			default:
+				return this.texts[i];
+		}
+	}
+
+	private static String escape(final String value) {
+		if (value.indexOf('&') < 0) return value;
+
+		final StringBuilder sb = new StringBuilder(value.length() + 16);
+		for (int i = 0; i < value.length(); i++) {
+			final char c = value.charAt(i);
+			if (c == '&') {
+				sb.append("&amp;");
+			}
+			else {
+				sb.append(c);
+			}
+		}
+		return sb.toString();
+	}
+
+	private final class RenderStream extends InputStream {
+		private final Map<String, String> parameters;
+		private final Map<String, String> jobNames;
+		private final CharsetEncoder encoder = UTF_8.newEncoder().onMalformedInput(CodingErrorAction.REPLACE).onUnmappableCharacter(CodingErrorAction.REPLACE);
+		private final ByteBuffer out = ByteBuffer.allocate(STREAM_BUFFER);
+		private CharBuffer in;
+		private int segment = -1;
+
+		RenderStream(final Map<String, String> parameters, final Map<String, String> jobNames) {
+			this.parameters = parameters;
+			this.jobNames = jobNames;
+			this.out.flip(); // Start empty.
+		}
+
+		/**
+		 * @return false at the end of the template.
+		 */
+		private boolean fill() {
+			while (!this.out.hasRemaining()) {
+				while (this.in == null || !this.in.hasRemaining()) {
+					if (++this.segment >= CompiledTemplate.this.kinds.length) return false;
+					this.in = CharBuffer.wrap(segment(this.segment, this.parameters, this.jobNames));
+					this.encoder.reset();
+				}
+				this.out.clear();
+				this.encoder.encode(this.in, this.out, true);
+				this.out.flip();
+			}
+			return true;
+		}
+
+		@Override
+		public int read() {
+			return fill() ? this.out.get() & 0xff : -1;
+		}
+
+		@Override
+		public int read(final byte[] b, final int off, final int len) {
+			if (len == 0) return 0;
+			if (!fill()) return -1;
+
+			final int n = Math.min(len, this.out.remaining());
+			this.out.get(b, off, n);
+			return n;
+		}
+
+		@Override
+		public int available() {
+			return this.out.remaining();
+		}
+	}
+
+	private static final class Builder {
+		private final List<Byte> kinds = new ArrayList<Byte>();
+		private final List<String> texts = new ArrayList<String>();
+		private final List<String> names = new ArrayList<String>();
+		private final Set<String> parameters = new TreeSet<String>();
+		private int length;
+
+		void literal(final String text) {
+			if (text.length() == 0) return;
+			add(LITERAL, text, null);
+		}
+
+		void slot(final byte kind, final String text, final String name) {
+			if (kind == PARAMETER_SLOT) this.parameters.add(name);
+			add(kind, text, name);
+		}
+
+		private void add(final byte kind, final String text, final String name) {
+			this.kinds.add(kind);
+			this.texts.add(text);
+			this.names.add(name);
+			this.length += text.length();
+		}
+
+		CompiledTemplate build() {
+			final byte[] k = new byte[this.kinds.size()];
+			for (int i = 0; i < k.length; i++) {
+				k[i] = this.kinds.get(i);
+			}
+			return new CompiledTemplate(k, this.texts.toArray(new String[this.texts.size()]), this.names.toArray(new String[this.names.size()]),
+					Collections.unmodifiableSet(this.parameters), this.length);
+		}
+	}
+}
@@ -0,0 +1,140 @@
+package org.jenkins.plugin.templateWorkflows;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Parameter values that are expressions over the other parameters of the instance: <code>${name}</code> is the value of
+ * parameter <code>name</code>, <code>${instance}</code> the instance name (unless there is a parameter of that name),
+ * and <code>$${</code> is a literal <code>${</code>. Anything else in <code>${...}</code>, such as a build variable, is left as it is.
+ *
+ * Only parameters marked computed are evaluated, see {@link TemplateWorkflowInstance#getComputedParameters()};
+ * every other value is used exactly as typed, so instances saved before there were computed parameters render as they always did.
+ * Instances keep the expressions, they are resolved once per render of an instance, in dependency order, before any job is rendered.
+ * Each distinct expression text is parsed once and shared by every instance using it.
+ */
+final class ComputedParameters {
+
+	static final String INSTANCE = "instance";
+
+	private static final int MAX_EXPRESSIONS = 4096;
+
+	// expression text -> parsed
+	private static final Map<String, Expression> EXPRESSIONS = new ConcurrentHashMap<String, Expression>();
+
+	private ComputedParameters() {
+	}
+
+	/**
+	 * A parsed value: literals[0] refs[0] literals[1] ... refs[n - 1] literals[n].
+	 */
+	static final class Expression {
+		final String[] literals;
+		final String[] refs;
+
+		Expression(final String[] literals, final String[] refs) {
+			this.literals = literals;
+			this.refs = refs;
+		}
+	}
+
+	static Expression compile(final String value) {
+		Expression expression = EXPRESSIONS.get(value);
+		if (expression != null) return expression;
+
+		final List<String> literals = new ArrayList<String>();
+		final List<String> refs = new ArrayList<String>();
+		final StringBuilder literal = new StringBuilder();
+		int i = 0;
+		while (i < value.length()) {
+			if (value.startsWith("$${", i)) {
+				literal.append("${");
+				i += 3;
+				continue;
+			}
+			if (value.startsWith("${", i)) {
+				final int end = value.indexOf('}', i + 2);
+				if (end >= 0) {
+					literals.add(literal.toString());
+					literal.setLength(0);
+					refs.add(value.substring(i + 2, end));
+					i = end + 1;
+					continue;
+				}
+			}
+			literal.append(value.charAt(i++));
+		}
+		literals.add(literal.toString());
+
+		expression = new Expression(literals.toArray(new String[literals.size()]), refs.toArray(new String[refs.size()]));
+		// Expressions are few and shared, a crude cap is enough against ones typed once and never again.
+		if (EXPRESSIONS.size() >= MAX_EXPRESSIONS) EXPRESSIONS.clear();
+		EXPRESSIONS.put(value, expression);
+		return expression;
+	}
+
+	/**
+	 * @param values parameter name -> value as typed, expressions included.
+	 * @param computed names of the parameters whose values are expressions, may be empty.
+	 * @return parameter name -> value with every computed parameter evaluated, the given map itself if there are none.
+	 * @throws IllegalArgumentException if computed parameters refer to each other in a cycle, naming it.
+	 */
+	static Map<String, String> resolve(final String instanceName, final Map<String, String> values, final Set<String> computed) {
+		if (computed.isEmpty()) return values;
+
+		final Map<String, String> resolved = new HashMap<String, String>(values);
+		final Set<String> done = new HashSet<String>();
+		final Set<String> path = new LinkedHashSet<String>();
+		for (final String name : computed) {
+			if (values.containsKey(name)) resolve(name, instanceName, values, computed, resolved, done, path);
+		}
+		return resolved;
+	}
+
+	private static String resolve(final String name, final String instanceName, final Map<String, String> values, final Set<String> computed,
+			final Map<String, String> resolved, final Set<String> done, final Set<String> path) {
+		final String value = values.get(name);
+		if (!computed.contains(name) || done.contains(name) || value == null || value.indexOf('$') < 0) return resolved.get(name);
+		if (!path.add(name)) throw new IllegalArgumentException("Parameters refer to each other in a cycle: " + cycle(path, name));
+
+		final Expression expression = compile(value);
+		final StringBuilder sb = new StringBuilder(value.length() + 64);
+		for (int i = 0; i < expression.refs.length; i++) {
+			sb.append(expression.literals[i]);
+			final String ref = expression.refs[i];
+			if (values.containsKey(ref)) {
+				final String refValue = resolve(ref, instanceName, values, computed, resolved, done, path);
+				if (refValue != null) sb.append(refValue);
+			}
+			else if (INSTANCE.equals(ref)) {
+				sb.append(instanceName);
+			}
+			else {
+				sb.append("${").append(ref).append('}');
+			}
+		}
+		sb.append(expression.literals[expression.refs.length]);
+
+		path.remove(name);
+		done.add(name);
+		final String ret = sb.toString();
+		resolved.put(name, ret);
+		return ret;
+	}
+
+	private static String cycle(final Set<String> path, final String name) {
+		final StringBuilder sb = new StringBuilder();
+		boolean inCycle = false;
+		for (final String p : path) {
+			if (p.equals(name)) inCycle = true;
+			if (inCycle) sb.append(p).append(" -> ");
+		}
+		return sb.append(name).toString();
+	}
+}
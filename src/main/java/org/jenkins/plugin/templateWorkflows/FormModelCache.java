@@ -0,0 +1,64 @@
+package org.jenkins.plugin.templateWorkflows;
+
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * {@link TemplateFormModel}s by template and scope, so opening the configure page is a map lookup instead of reading every building block.
+ * {@link TemplateItemListener} drops the model of every template a saved, renamed or deleted job belongs or belonged to.
+ */
+final class FormModelCache {
+
+	private static final FormModelCache INSTANCE = new FormModelCache();
+
+	static FormModelCache get() {
+		return INSTANCE;
+	}
+
+	// template key + '\n' + scope -> model
+	private final Map<String, TemplateFormModel> models = new ConcurrentHashMap<String, TemplateFormModel>();
+
+	// Bumped by every invalidation, a model built across one is not kept as it may already be stale.
+	private long generation;
+
+	FormModelCache() {
+	}
+
+	/**
+	 * @param scope full name of the folder the template was resolved in, see {@link TemplatesWorkflowJob#getScope()}.
+	 */
+	TemplateFormModel get(final String templateName, final String scope) {
+		return this.models.get(TemplateRegistry.key(templateName) + '\n' + scope);
+	}
+
+	/**
+	 * @return what to pass to {@link #put} once the model is built.
+	 */
+	synchronized long generation() {
+		return this.generation;
+	}
+
+	synchronized void put(final TemplateFormModel model, final String scope, final long generation) {
+		if (generation == this.generation) {
+			this.models.put(TemplateRegistry.key(model.getTemplateName()) + '\n' + scope, model);
+		}
+	}
+
+	/**
+	 * @param templateKeys as {@link TemplateRegistry#key(String)} gives them.
+	 */
+	synchronized void invalidate(final Collection<String> templateKeys) {
+		if (templateKeys.isEmpty()) return;
+
+		this.generation++;
+		for (final String key : this.models.keySet()) {
+			if (templateKeys.contains(key.substring(0, key.indexOf('\n')))) this.models.remove(key);
+		}
+	}
+
+	synchronized void clear() {
+		this.generation++;
+		this.models.clear();
+	}
+}
@@ -0,0 +1,213 @@
+package org.jenkins.plugin.templateWorkflows;
+
+import hudson.model.Job;
+import hudson.security.ACL;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Lock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import jenkins.model.Jenkins;
+
+import org.acegisecurity.context.SecurityContext;
+import org.acegisecurity.context.SecurityContextHolder;
+
+/**
+ * Deletes many instances and the jobs they created at once.
+ * Instances are deleted on a small pool, each deleting its own jobs one by one, so at most that many jobs are deleted at a time.
+ * A failing instance only fails its own result, and the instance map is written once at the end.
+ *
+ * Tunable with the system properties
+ * <code>org.jenkins.plugin.templateWorkflows.InstanceDeleter.threads</code> (4 by default) and
+ * <code>org.jenkins.plugin.templateWorkflows.InstanceDeleter.busyTimeout</code> (seconds to wait for busy jobs, 300 by default).
+ */
+final class InstanceDeleter {
+
+	private static final Logger LOGGER = Logger.getLogger(InstanceDeleter.class.getName());
+
+	static final int THREADS = Math.max(1, Integer.getInteger(InstanceDeleter.class.getName() + ".threads", 4));
+	static final long BUSY_TIMEOUT_MILLIS = 1000L * Math.max(0, Integer.getInteger(InstanceDeleter.class.getName() + ".busyTimeout", 300));
+
+	private static final long BUSY_POLL_MILLIS = 1000;
+
+	/**
+	 * What to do with an instance whose jobs are building or queued.
+	 */
+	enum BusyPolicy {
+		/** Leave the instance alone and report it as not deleted. */
+		SKIP,
+		/** Wait for its jobs to finish, for at most the busy timeout. */
+		WAIT;
+
+		/**
+		 * @return the policy of that name, ignoring case, {@link #SKIP} if there is none.
+		 */
+		static BusyPolicy of(final String name) {
+			for (final BusyPolicy p : values()) {
+				if (p.name().equalsIgnoreCase(name)) return p;
+			}
+			return SKIP;
+		}
+	}
+
+	private static ExecutorService pool;
+
+	private InstanceDeleter() {
+	}
+
+	private static synchronized ExecutorService pool() {
+		if (pool == null) {
+			final AtomicInteger count = new AtomicInteger();
+			pool = Executors.newFixedThreadPool(THREADS, new ThreadFactory() {
+				public Thread newThread(final Runnable r) {
+					final Thread t = new Thread(r, "Template workflow delete #" + count.incrementAndGet());
+					t.setDaemon(true);
+					return t;
+				}
+			});
+		}
+		return pool;
+	}
+
+	/**
+	 * @param progress told about every instance as it finishes, may be null.
+	 * @return one result per instance, in the order given.
+	 */
+	static List<InstanceUpdateResult> deleteAll(final TemplatesWorkflowJob workflowJob, final Collection<String> instanceNames, final BusyPolicy policy,
+			final UpdateProgress progress) {
+		final List<Future<InstanceUpdateResult>> futures = new ArrayList<Future<InstanceUpdateResult>>(instanceNames.size());
+		for (final String instanceName : instanceNames) {
+			futures.add(pool().submit(new Callable<InstanceUpdateResult>() {
+				public InstanceUpdateResult call() {
+					// Pool threads run as nobody, which may not be allowed to see or delete the generated jobs.
+					final SecurityContext old = ACL.impersonate(ACL.SYSTEM);
+					try {
+						final InstanceUpdateResult result = delete(workflowJob, instanceName, policy);
+						if (progress != null) progress.instanceFinished(result);
+						return result;
+					}
+					finally {
+						SecurityContextHolder.setContext(old);
+					}
+				}
+			}));
+		}
+
+		final List<InstanceUpdateResult> results = new ArrayList<InstanceUpdateResult>(instanceNames.size());
+		int i = 0;
+		for (final String instanceName : instanceNames) {
+			final Future<InstanceUpdateResult> future = futures.get(i++);
+			try {
+				results.add(future.get());
+			}
+			catch (final InterruptedException e) {
+				future.cancel(true);
+				Thread.currentThread().interrupt();
+				results.add(InstanceUpdateResult.failed(instanceName, "Interrupted", 0));
+			}
+			catch (final ExecutionException e) {
+				results.add(InstanceUpdateResult.failed(instanceName, e.getCause().toString(), 0));
+			}
+		}
+
+		try {
+			workflowJob.flushInstances();
+		}
+		catch (final IOException e) {
+			LOGGER.log(Level.WARNING, "Failed to save the workflows of " + workflowJob.getFullName(), e);
+		}
+		return results;
+	}
+
+	private static InstanceUpdateResult delete(final TemplatesWorkflowJob workflowJob, final String instanceName, final BusyPolicy policy) {
+		final long start = System.currentTimeMillis();
+		final long startNanos = System.nanoTime();
+		final TemplateWorkflowInstance instance = workflowJob.getInstance(instanceName);
+		if (instance == null) {
+			return InstanceUpdateResult.failed(instanceName, "Workflow not found", 0);
+		}
+
+		try {
+			// Waiting happens before taking the lock, so other operations on the instance are not held up by it.
+			String busy = busyReason(instance);
+			if (busy != null && policy == BusyPolicy.WAIT) {
+				final long deadline = System.currentTimeMillis() + BUSY_TIMEOUT_MILLIS;
+				while (busy != null && System.currentTimeMillis() < deadline) {
+					Thread.sleep(BUSY_POLL_MILLIS);
+					busy = busyReason(instance);
+				}
+			}
+			if (busy != null) {
+				return InstanceUpdateResult.failed(instanceName, busy, System.currentTimeMillis() - start);
+			}
+
+			final Lock lock = workflowJob.tryLock(instanceName);
+			try {
+				busy = busyReason(instance);
+				if (busy != null) {
+					return InstanceUpdateResult.failed(instanceName, busy, System.currentTimeMillis() - start);
+				}
+
+				final int deleted = deleteJobs(instance);
+				workflowJob.removeInstance(instanceName);
+				return InstanceUpdateResult.deleted(instanceName, instance.getRelatedJobs().size(), deleted, System.currentTimeMillis() - start);
+			}
+			finally {
+				lock.unlock();
+			}
+		}
+		catch (final Exception e) {
+			return InstanceUpdateResult.failed(instanceName, e.toString(), System.currentTimeMillis() - start);
+		}
+		finally {
+			workflowJob.timer(instance.getTemplateName(), WorkflowMetrics.DELETE_INSTANCE).record(startNanos);
+		}
+	}
+
+	/**
+	 * @return why the instance can't be deleted now, null if none of its jobs is building or queued.
+	 */
+	static String busyReason(final TemplateWorkflowInstance instance) {
+		for (final String jobName : instance.getRelatedJobs().values()) {
+			final Job job = (Job) Jenkins.getInstance().getItem(jobName);
+			if (job != null && job.isBuilding()) {
+				return "Job " + job.getName() + " is Currently Building";
+			}
+			else if (job != null && job.isInQueue()) {
+				return "Job " + job.getName() + " is in the Build Queue";
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Deletes the jobs the instance created, leaving alone existing jobs it only used.
+	 * @return how many jobs were deleted.
+	 */
+	static int deleteJobs(final TemplateWorkflowInstance instance) throws IOException, InterruptedException {
+		int deleted = 0;
+		for (final String jobName : instance.getRelatedJobs().values()) {
+			if (!instance.isJobWasCreateByWorkflow(jobName)) {
+				continue;
+			}
+
+			final Job job = (Job) Jenkins.getInstance().getItem(jobName);
+			if (job != null) {
+				job.delete();
+				deleted++;
+			}
+		}
+		return deleted;
+	}
+}
@@ -0,0 +1,121 @@
+package org.jenkins.plugin.templateWorkflows;
+
+import java.lang.ref.WeakReference;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * The parameter names and building block names of a template's instances, sorted, shared by every instance with the same ones.
+ * A {@link TemplateWorkflowInstance} only keeps arrays of values in the order given here, so thousands of instances of a template
+ * hold one copy of the names between them.
+ * Schemas and names are interned weakly: they are shared while some instance uses them and dropped with the last one.
+ * Parameter values are not, they are mostly unique to their instance.
+ */
+final class InstanceSchema {
+
+	// A schema is its own key, so equal ones are looked up in one step.
+	private static final Map<InstanceSchema, WeakReference<InstanceSchema>> SCHEMAS = new WeakHashMap<InstanceSchema, WeakReference<InstanceSchema>>();
+	private static final Map<String, WeakReference<String>> NAMES = new WeakHashMap<String, WeakReference<String>>();
+
+	static final InstanceSchema EMPTY = of(Arrays.<String>asList(), Arrays.<String>asList());
+
+	private final String[] parameters;
+	private final String[] jobs;
+	private final int hash;
+
+	private InstanceSchema(final String[] parameters, final String[] jobs) {
+		this.parameters = parameters;
+		this.jobs = jobs;
+		this.hash = 31 * Arrays.hashCode(parameters) + Arrays.hashCode(jobs);
+	}
+
+	/**
+	 * @return the shared schema with these names.
+	 */
+	static InstanceSchema of(final Collection<String> parameters, final Collection<String> jobs) {
+		final InstanceSchema schema = new InstanceSchema(sorted(parameters), sorted(jobs));
+		synchronized (SCHEMAS) {
+			final WeakReference<InstanceSchema> shared = SCHEMAS.get(schema);
+			final InstanceSchema existing = shared != null ? shared.get() : null;
+			if (existing != null) return existing;
+
+			for (int i = 0; i < schema.parameters.length; i++) {
+				schema.parameters[i] = name(schema.parameters[i]);
+			}
+			for (int i = 0; i < schema.jobs.length; i++) {
+				schema.jobs[i] = name(schema.jobs[i]);
+			}
+			SCHEMAS.put(schema, new WeakReference<InstanceSchema>(schema));
+			return schema;
+		}
+	}
+
+	private static String[] sorted(final Collection<String> names) {
+		final String[] ret = names.toArray(new String[names.size()]);
+		Arrays.sort(ret);
+		return ret;
+	}
+
+	/**
+	 * For names that repeat across instances: parameter, building block and template names.
+	 * @return a string equal to the given one, the same instance for every equal name while any is in use.
+	 */
+	static String name(final String name) {
+		if (name == null) return null;
+
+		synchronized (NAMES) {
+			final WeakReference<String> shared = NAMES.get(name);
+			final String existing = shared != null ? shared.get() : null;
+			if (existing != null) return existing;
+
+			NAMES.put(name, new WeakReference<String>(name));
+			return name;
+		}
+	}
+
+	int parameterCount() {
+		return this.parameters.length;
+	}
+
+	String parameter(final int i) {
+		return this.parameters[i];
+	}
+
+	/**
+	 * @return index of the parameter, negative if there is no such parameter.
+	 */
+	int parameterIndex(final Object name) {
+		return name instanceof String ? Arrays.binarySearch(this.parameters, (String) name) : -1;
+	}
+
+	int jobCount() {
+		return this.jobs.length;
+	}
+
+	String job(final int i) {
+		return this.jobs[i];
+	}
+
+	/**
+	 * @return index of the building block, negative if there is no such building block.
+	 */
+	int jobIndex(final Object name) {
+		return name instanceof String ? Arrays.binarySearch(this.jobs, (String) name) : -1;
+	}
+
+	@Override
+	public boolean equals(final Object o) {
+		if (this == o) return true;
+		if (!(o instanceof InstanceSchema)) return false;
+
+		final InstanceSchema other = (InstanceSchema) o;
+		return this.hash == other.hash && Arrays.equals(this.parameters, other.parameters) && Arrays.equals(this.jobs, other.jobs);
+	}
+
+	@Override
+	public int hashCode() {
+		return this.hash;
+	}
+}
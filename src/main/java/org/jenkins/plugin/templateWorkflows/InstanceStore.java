@@ -0,0 +1,311 @@
+package org.jenkins.plugin.templateWorkflows;
+
+import hudson.Util;
+import hudson.XmlFile;
+import hudson.model.PersistenceRoot;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.lang.StringUtils;
+
+/**
+ * Keeps every {@link TemplateWorkflowInstance} of a workflow job in its own file,
+ * <code>instances/&lt;name&gt;.xml</code> under the job's root directory, so that saving one instance costs the same however many there are.
+ *
+ * An {@link InstanceSummary} of every instance is kept next to it, so startup reads no instance.
+ * <code>instances-summary.xml</code> holds all of them as of some point, <code>instances-summary.log</code> the changes since, one line each,
+ * so a save appends what it changed rather than writing every summary. The log is folded into the summaries once it is larger than them.
+ * Before a save touches any instance file it logs which ones it is about to write, after it logs their summaries;
+ * instances that were to be written but have no summary after that, as after a crash, are read from their files on startup.
+ *
+ * The files are looked up under the job's root directory as it is at each access, so the store follows the job when it or a folder above it is renamed.
+ */
+final class InstanceStore {
+
+	private static final Logger LOGGER = Logger.getLogger(InstanceStore.class.getName());
+
+	static final String DIR_NAME = "instances";
+	static final String SUMMARY_NAME = "instances-summary.xml";
+	static final String LOG_NAME = "instances-summary.log";
+
+	// The log is never folded into the summaries while it is smaller than this.
+	private static final long MIN_LOG_BYTES = 64 * 1024;
+
+	// Log lines: an operation, then fields encoded with URLEncoder so they hold no spaces or line breaks.
+	private static final String PENDING = "P";
+	private static final String SAVED = "S";
+	private static final String DELETED = "D";
+
+	private final PersistenceRoot job;
+
+	/**
+	 * @param job the workflow job the instances belong to.
+	 */
+	InstanceStore(final PersistenceRoot job) {
+		this.job = job;
+	}
+
+	private File dir() {
+		return new File(this.job.getRootDir(), DIR_NAME);
+	}
+
+	private File summaryFile() {
+		return new File(this.job.getRootDir(), SUMMARY_NAME);
+	}
+
+	private File logFile() {
+		return new File(this.job.getRootDir(), LOG_NAME);
+	}
+
+	/**
+	 * @return the instance, null if it has no file or the file can not be read, which is logged.
+	 */
+	TemplateWorkflowInstance read(final String instanceName) {
+		final File f = fileFor(instanceName);
+		if (!f.exists()) return null;
+
+		try {
+			final Object o = new XmlFile(f).read();
+			if (o instanceof TemplateWorkflowInstance) return (TemplateWorkflowInstance) o;
+			LOGGER.warning("Ignoring " + f + ", it does not hold a workflow instance");
+		}
+		catch (final IOException e) {
+			LOGGER.log(Level.WARNING, "Failed to load workflow instance from " + f, e);
+		}
+		return null;
+	}
+
+	/**
+	 * Reads the summaries and replays the log over them. Only instances a save did not finish with are read,
+	 * and the directory is listed to make sure there is a file for every summary and a summary for every file.
+	 * @return the summaries sorted by instance name, null if there are none or they do not match the files,
+	 *         as when instance files were copied in by hand. Then {@link #load()} has to be used.
+	 */
+	List<InstanceSummary> loadSummaries() {
+		final File summaryFile = summaryFile();
+		if (!summaryFile.exists()) return null;
+
+		final Map<String, InstanceSummary> summaries = new TreeMap<String, InstanceSummary>();
+		try {
+			final Object o = new XmlFile(summaryFile).read();
+			if (!(o instanceof List)) return null;
+			for (final Object summary : (List<?>) o) {
+				if (!(summary instanceof InstanceSummary)) return null;
+				summaries.put(((InstanceSummary) summary).getInstanceName(), (InstanceSummary) summary);
+			}
+			if (!replayLog(summaries)) return null;
+		}
+		catch (final IOException e) {
+			LOGGER.log(Level.WARNING, "Failed to load workflow summaries of " + dir() + ", reading every workflow instead", e);
+			return null;
+		}
+
+		final File[] files = listFiles();
+		final Set<String> fileNames = new HashSet<String>();
+		if (files != null) {
+			for (final File f : files) {
+				fileNames.add(f.getName());
+			}
+		}
+		if (fileNames.size() != summaries.size()) return null;
+		for (final String instanceName : summaries.keySet()) {
+			if (!fileNames.contains(fileFor(instanceName).getName())) return null;
+		}
+		return new ArrayList<InstanceSummary>(summaries.values());
+	}
+
+	/**
+	 * @return false if the log can not be made sense of.
+	 */
+	private boolean replayLog(final Map<String, InstanceSummary> summaries) throws IOException {
+		final File logFile = logFile();
+		if (!logFile.exists()) return true;
+
+		final Set<String> pending = new HashSet<String>();
+		final String log = FileUtils.readFileToString(logFile, "UTF-8");
+		// A last line without its line break was cut short by a crash: its instances are still pending, or were never touched.
+		final int end = log.lastIndexOf('\n') + 1;
+		try {
+			for (final String line : StringUtils.split(log.substring(0, end), '\n')) {
+				final String[] fields = line.split(" ", -1);
+				final String instanceName = fields.length > 1 ? URLDecoder.decode(fields[1], "UTF-8") : null;
+				if (PENDING.equals(fields[0]) && fields.length == 2) {
+					pending.add(instanceName);
+				}
+				else if (DELETED.equals(fields[0]) && fields.length == 2) {
+					summaries.remove(instanceName);
+					pending.remove(instanceName);
+				}
+				else if (SAVED.equals(fields[0]) && fields.length == 4) {
+					summaries.put(instanceName, new InstanceSummary(instanceName, URLDecoder.decode(fields[2], "UTF-8"), Integer.parseInt(fields[3])));
+					pending.remove(instanceName);
+				}
+				else {
+					return false;
+				}
+			}
+		}
+		catch (final IllegalArgumentException e) {
+			return false;
+		}
+
+		for (final String instanceName : pending) {
+			final TemplateWorkflowInstance instance = read(instanceName);
+			if (instance != null) {
+				summaries.put(instanceName, new InstanceSummary(instance));
+			}
+			else {
+				summaries.remove(instanceName);
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * To be called before writing or deleting any of the instances.
+	 */
+	void logPending(final Collection<String> instanceNames) throws IOException {
+		final StringBuilder sb = new StringBuilder();
+		for (final String instanceName : instanceNames) {
+			sb.append(PENDING).append(' ').append(encode(instanceName)).append('\n');
+		}
+		append(sb);
+	}
+
+	/**
+	 * To be called once the instances have been written or deleted.
+	 * @param deleted names of the instances deleted.
+	 */
+	void logDone(final Collection<InstanceSummary> saved, final Collection<String> deleted) throws IOException {
+		final StringBuilder sb = new StringBuilder();
+		for (final InstanceSummary summary : saved) {
+			sb.append(SAVED).append(' ').append(encode(summary.getInstanceName())).append(' ').append(encode(summary.getTemplateName())).append(' ')
+					.append(summary.getRelatedJobsSize()).append('\n');
+		}
+		for (final String instanceName : deleted) {
+			sb.append(DELETED).append(' ').append(encode(instanceName)).append('\n');
+		}
+		append(sb);
+	}
+
+	/**
+	 * @return whether there are no summaries yet, or the log has grown larger than them so folding it in with {@link #writeSummaries}
+	 *         costs less than keeping it.
+	 */
+	boolean shouldWriteSummaries() {
+		final File summaryFile = summaryFile();
+		if (!summaryFile.exists()) return true;
+
+		final long log = logFile().length();
+		return log > MIN_LOG_BYTES && log > summaryFile.length();
+	}
+
+	/**
+	 * Writes all summaries at once and empties the log.
+	 */
+	void writeSummaries(final Collection<InstanceSummary> summaries) throws IOException {
+		new XmlFile(summaryFile()).write(new ArrayList<InstanceSummary>(summaries));
+		// Replaying a log left by a crash here over the new summaries ends in the same state, so the order is safe.
+		final File logFile = logFile();
+		if (logFile.exists() && !logFile.delete()) throw new IOException("Failed to delete " + logFile);
+	}
+
+	private void append(final StringBuilder sb) throws IOException {
+		if (sb.length() == 0) return;
+
+		final FileOutputStream out = new FileOutputStream(logFile(), true);
+		try {
+			out.write(sb.toString().getBytes("UTF-8"));
+			// Pending lines must be on disk before the instance files are touched.
+			out.getFD().sync();
+		}
+		finally {
+			out.close();
+		}
+	}
+
+	private static String encode(final String s) throws UnsupportedEncodingException {
+		return URLEncoder.encode(s, "UTF-8");
+	}
+
+	private File[] listFiles() {
+		return dir().listFiles(new FileFilter() {
+			public boolean accept(final File f) {
+				return f.isFile() && f.getName().endsWith(".xml");
+			}
+		});
+	}
+
+	/**
+	 * @return instance name -> instance, files that can not be read are logged and skipped.
+	 */
+	Map<String, TemplateWorkflowInstance> load() {
+		final Map<String, TemplateWorkflowInstance> ret = new HashMap<String, TemplateWorkflowInstance>();
+		final File[] files = listFiles();
+		if (files == null) return ret;
+
+		for (final File f : files) {
+			try {
+				final Object o = new XmlFile(f).read();
+				if (o instanceof TemplateWorkflowInstance) {
+					final TemplateWorkflowInstance instance = (TemplateWorkflowInstance) o;
+					ret.put(instance.getInstanceName(), instance);
+				}
+				else {
+					LOGGER.warning("Ignoring " + f + ", it does not hold a workflow instance");
+				}
+			}
+			catch (final IOException e) {
+				LOGGER.log(Level.WARNING, "Failed to load workflow instance from " + f, e);
+			}
+		}
+		return ret;
+	}
+
+	void write(final TemplateWorkflowInstance instance) throws IOException {
+		new XmlFile(fileFor(instance.getInstanceName())).write(instance);
+	}
+
+	void delete(final String instanceName) throws IOException {
+		final File f = fileFor(instanceName);
+		if (f.exists() && !f.delete()) throw new IOException("Failed to delete " + f);
+	}
+
+	/**
+	 * Names are made file system safe; any name that had to be changed gets a digest of the original so that it stays unique.
+	 * The real name is read back from the file, not from its name.
+	 */
+	private File fileFor(final String instanceName) {
+		final StringBuilder b = new StringBuilder(instanceName.length() + 9);
+		boolean changed = instanceName.length() == 0;
+		for (int i = 0; i < instanceName.length(); i++) {
+			final char c = instanceName.charAt(i);
+			if ((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') || c == '-' || c == '_') {
+				b.append(c);
+			}
+			else {
+				b.append('_');
+				changed = true;
+			}
+		}
+		if (changed) b.append('-').append(Util.getDigestOf(instanceName).substring(0, 8));
+		return new File(dir(), b.append(".xml").toString());
+	}
+}
@@ -0,0 +1,52 @@
+package org.jenkins.plugin.templateWorkflows;
+
+import org.kohsuke.stapler.export.Exported;
+import org.kohsuke.stapler.export.ExportedBean;
+
+/**
+ * What the job page shows of an instance, kept for every instance while the parameters and jobs are only read when needed.
+ * {@link InstanceStore} keeps them all in one file so startup does not have to read every instance.
+ */
+@ExportedBean
+public final class InstanceSummary implements Comparable<InstanceSummary> {
+
+	private final String instanceName;
+	private String templateName;
+	private final int relatedJobsSize;
+
+	InstanceSummary(final TemplateWorkflowInstance instance) {
+		this.instanceName = instance.getInstanceName();
+		this.templateName = InstanceSchema.name(instance.getTemplateName());
+		this.relatedJobsSize = instance.getRelatedJobsSize();
+	}
+
+	InstanceSummary(final String instanceName, final String templateName, final int relatedJobsSize) {
+		this.instanceName = instanceName;
+		this.templateName = InstanceSchema.name(templateName);
+		this.relatedJobsSize = relatedJobsSize;
+	}
+
+	private Object readResolve() {
+		this.templateName = InstanceSchema.name(this.templateName);
+		return this;
+	}
+
+	@Exported
+	public String getInstanceName() {
+		return this.instanceName;
+	}
+
+	@Exported
+	public String getTemplateName() {
+		return this.templateName;
+	}
+
+	@Exported
+	public int getRelatedJobsSize() {
+		return this.relatedJobsSize;
+	}
+
+	public int compareTo(final InstanceSummary o) {
+		return this.instanceName.compareTo(o.instanceName);
+	}
+}
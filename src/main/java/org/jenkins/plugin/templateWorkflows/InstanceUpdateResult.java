@@ -0,0 +1,88 @@
+package org.jenkins.plugin.templateWorkflows;
+
+import net.sf.json.JSONObject;
+
+import org.kohsuke.stapler.export.Exported;
+import org.kohsuke.stapler.export.ExportedBean;
+
+/**
+ * Outcome of re-rendering and applying, or of deleting, one {@link TemplateWorkflowInstance}.
+ */
+@ExportedBean
+public final class InstanceUpdateResult {
+
+	private final String instanceName;
+	private final boolean updated;
+	private final String msg;
+	private final int jobs;
+	private final int changedJobs;
+	private final long durationMillis;
+
+	private InstanceUpdateResult(final String instanceName, final boolean updated, final String msg, final int jobs, final int changedJobs, final long durationMillis) {
+		this.instanceName = instanceName;
+		this.updated = updated;
+		this.msg = msg;
+		this.jobs = jobs;
+		this.changedJobs = changedJobs;
+		this.durationMillis = durationMillis;
+	}
+
+	public static InstanceUpdateResult updated(final String instanceName, final int jobs, final int changedJobs, final long durationMillis) {
+		return new InstanceUpdateResult(instanceName, true, "", jobs, changedJobs, durationMillis);
+	}
+
+	/**
+	 * @param deletedJobs reported as {@link #getChangedJobs()}, the other jobs were existing ones the instance only used.
+	 */
+	public static InstanceUpdateResult deleted(final String instanceName, final int jobs, final int deletedJobs, final long durationMillis) {
+		return new InstanceUpdateResult(instanceName, true, "", jobs, deletedJobs, durationMillis);
+	}
+
+	public static InstanceUpdateResult failed(final String instanceName, final String msg, final long durationMillis) {
+		return new InstanceUpdateResult(instanceName, false, msg, 0, 0, durationMillis);
+	}
+
+	@Exported
+	public String getInstanceName() {
+		return this.instanceName;
+	}
+
+	@Exported
+	public boolean isUpdated() {
+		return this.updated;
+	}
+
+	@Exported
+	public String getMsg() {
+		return this.msg;
+	}
+
+	@Exported
+	public int getJobs() {
+		return this.jobs;
+	}
+
+	/**
+	 * @return how many of the jobs were actually rewritten, the others rendered to the same config as last time.
+	 */
+	@Exported
+	public int getChangedJobs() {
+		return this.changedJobs;
+	}
+
+	@Exported
+	public long getDurationMillis() {
+		return this.durationMillis;
+	}
+
+	public JSONObject toJSON() {
+		JSONObject ret = new JSONObject();
+		ret.put("instanceName", this.instanceName);
+		ret.put("result", this.updated);
+		ret.put("msg", this.msg);
+		ret.put("jobs", this.jobs);
+		ret.put("changedJobs", this.changedJobs);
+		ret.put("duration", this.durationMillis);
+		return ret;
+	}
+}
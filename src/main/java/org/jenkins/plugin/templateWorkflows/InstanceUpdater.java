@@ -0,0 +1,452 @@
+package org.jenkins.plugin.templateWorkflows;
+
+import hudson.model.Job;
+import hudson.security.ACL;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Lock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.parsers.SAXParser;
+import javax.xml.parsers.SAXParserFactory;
+
+import jenkins.model.Jenkins;
+
+import org.acegisecurity.context.SecurityContext;
+import org.acegisecurity.context.SecurityContextHolder;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang.StringUtils;
+import org.xml.sax.SAXException;
+import org.xml.sax.SAXParseException;
+import org.xml.sax.helpers.DefaultHandler;
+
+/**
+ * Re-renders and applies many instances at once.
+ * Rendering runs on a fixed size pool (one thread per core unless configured otherwise).
+ * Applying hits the Jenkins item store, so only a few instances may do that at a time.
+ * A failing instance only fails its own result.
+ *
+ * Tunable with the system properties
+ * <code>org.jenkins.plugin.templateWorkflows.InstanceUpdater.threads</code> and
+ * <code>org.jenkins.plugin.templateWorkflows.InstanceUpdater.applyConcurrency</code>.
+ */
+final class InstanceUpdater {
+
+	private static final Logger LOGGER = Logger.getLogger(InstanceUpdater.class.getName());
+
+	static final int THREADS = Math.max(1, Integer.getInteger(InstanceUpdater.class.getName() + ".threads", Runtime.getRuntime().availableProcessors()));
+	static final int APPLY_CONCURRENCY = Math.max(1, Integer.getInteger(InstanceUpdater.class.getName() + ".applyConcurrency", 2));
+
+	static final Semaphore APPLY = new Semaphore(APPLY_CONCURRENCY, true);
+
+	private static ExecutorService pool;
+	private static ExecutorService background;
+
+	private InstanceUpdater() {
+	}
+
+	static synchronized ExecutorService pool() {
+		if (pool == null) {
+			final AtomicInteger count = new AtomicInteger();
+			pool = Executors.newFixedThreadPool(THREADS, new ThreadFactory() {
+				public Thread newThread(final Runnable r) {
+					final Thread t = new Thread(r, "Template workflow update #" + count.incrementAndGet());
+					t.setDaemon(true);
+					return t;
+				}
+			});
+		}
+		return pool;
+	}
+
+	/**
+	 * Runs whole updates in the background, kept apart from {@link #pool()} so that a run never waits for its own tasks.
+	 */
+	static synchronized ExecutorService background() {
+		if (background == null) {
+			final AtomicInteger count = new AtomicInteger();
+			background = Executors.newCachedThreadPool(new ThreadFactory() {
+				public Thread newThread(final Runnable r) {
+					final Thread t = new Thread(r, "Template workflow run #" + count.incrementAndGet());
+					t.setDaemon(true);
+					return t;
+				}
+			});
+		}
+		return background;
+	}
+
+	/**
+	 * @param progress told about every job and instance as they finish, may be null.
+	 * @return one result per instance, in the order given.
+	 */
+	static List<InstanceUpdateResult> updateAll(final TemplatesWorkflowJob workflowJob, final Collection<TemplateWorkflowInstance> instances, final UpdateProgress progress) {
+		final long start = System.nanoTime();
+		final List<Future<InstanceUpdateResult>> futures = new ArrayList<Future<InstanceUpdateResult>>(instances.size());
+		for (final TemplateWorkflowInstance instance : instances) {
+			futures.add(pool().submit(new Callable<InstanceUpdateResult>() {
+				public InstanceUpdateResult call() {
+					// Pool threads run as nobody, which may not be allowed to see the building blocks or the generated jobs.
+					final SecurityContext old = ACL.impersonate(ACL.SYSTEM);
+					try {
+						final InstanceUpdateResult result = update(workflowJob, instance, progress);
+						if (progress != null) progress.instanceFinished(result);
+						return result;
+					}
+					finally {
+						SecurityContextHolder.setContext(old);
+					}
+				}
+			}));
+		}
+
+		final List<InstanceUpdateResult> results = new ArrayList<InstanceUpdateResult>(instances.size());
+		int i = 0;
+		for (final TemplateWorkflowInstance instance : instances) {
+			final Future<InstanceUpdateResult> future = futures.get(i++);
+			try {
+				results.add(future.get());
+			}
+			catch (final InterruptedException e) {
+				future.cancel(true);
+				Thread.currentThread().interrupt();
+				results.add(InstanceUpdateResult.failed(instance.getInstanceName(), "Interrupted", 0));
+			}
+			catch (final ExecutionException e) {
+				results.add(InstanceUpdateResult.failed(instance.getInstanceName(), e.getCause().toString(), 0));
+			}
+		}
+
+		// One write for the whole batch rather than one per instance.
+		try {
+			workflowJob.flushInstances();
+		}
+		catch (final IOException e) {
+			LOGGER.log(Level.WARNING, "Failed to save the workflows of " + workflowJob.getFullName(), e);
+		}
+		workflowJob.timer(WorkflowMetrics.ANY_TEMPLATE, WorkflowMetrics.UPDATE_ALL).record(start);
+		return results;
+	}
+
+	/**
+	 * Like {@link #updateAll}, in two phases. First every instance is rendered and checked in parallel, nothing is written:
+	 * each config must be well formed XML and each job must exist. Only if all of them pass are they applied,
+	 * otherwise every problem is reported and no instance is updated.
+	 */
+	static List<InstanceUpdateResult> updateAllValidated(final TemplatesWorkflowJob workflowJob, final Collection<TemplateWorkflowInstance> instances,
+			final UpdateProgress progress) {
+		final long start = System.nanoTime();
+		final List<Future<Prepared>> checks = new ArrayList<Future<Prepared>>(instances.size());
+		for (final TemplateWorkflowInstance instance : instances) {
+			checks.add(pool().submit(new Callable<Prepared>() {
+				public Prepared call() throws Exception {
+					final SecurityContext old = ACL.impersonate(ACL.SYSTEM);
+					try {
+						return check(workflowJob, instance);
+					}
+					finally {
+						SecurityContextHolder.setContext(old);
+					}
+				}
+			}));
+		}
+
+		final List<Prepared> prepared = new ArrayList<Prepared>(instances.size());
+		int invalid = 0;
+		int i = 0;
+		for (final TemplateWorkflowInstance instance : instances) {
+			final Future<Prepared> future = checks.get(i++);
+			Prepared p;
+			try {
+				p = future.get();
+			}
+			catch (final InterruptedException e) {
+				future.cancel(true);
+				Thread.currentThread().interrupt();
+				p = new Prepared(instance, null, null, Collections.singletonList("Interrupted"));
+			}
+			catch (final ExecutionException e) {
+				p = new Prepared(instance, null, null, Collections.singletonList(e.getCause().toString()));
+			}
+			if (!p.problems.isEmpty()) {
+				invalid++;
+				for (final String problem : p.problems) {
+					if (progress != null) progress.println("[" + instance.getInstanceName() + "] INVALID: " + problem);
+				}
+			}
+			prepared.add(p);
+		}
+
+		final List<InstanceUpdateResult> results = new ArrayList<InstanceUpdateResult>(instances.size());
+		if (invalid > 0) {
+			if (progress != null) progress.println(invalid + " of " + instances.size() + " workflows have problems, none has been updated");
+			for (final Prepared p : prepared) {
+				final String msg = p.problems.isEmpty() ? "Not updated, other workflows have problems" : StringUtils.join(p.problems, "; ");
+				final InstanceUpdateResult result = InstanceUpdateResult.failed(p.instance.getInstanceName(), msg, 0);
+				if (progress != null) progress.instanceFinished(result);
+				results.add(result);
+			}
+			workflowJob.timer(WorkflowMetrics.ANY_TEMPLATE, WorkflowMetrics.UPDATE_ALL).recordFailure(start);
+			return results;
+		}
+		if (progress != null) progress.println("All " + instances.size() + " workflows rendered and checked, applying them");
+
+		final List<Future<InstanceUpdateResult>> futures = new ArrayList<Future<InstanceUpdateResult>>(prepared.size());
+		for (final Prepared p : prepared) {
+			futures.add(pool().submit(new Callable<InstanceUpdateResult>() {
+				public InstanceUpdateResult call() {
+					final SecurityContext old = ACL.impersonate(ACL.SYSTEM);
+					try {
+						final InstanceUpdateResult result = commit(workflowJob, p, true, progress, System.currentTimeMillis());
+						if (progress != null) progress.instanceFinished(result);
+						return result;
+					}
+					finally {
+						SecurityContextHolder.setContext(old);
+					}
+				}
+			}));
+		}
+
+		i = 0;
+		for (final Prepared p : prepared) {
+			final Future<InstanceUpdateResult> future = futures.get(i++);
+			try {
+				results.add(future.get());
+			}
+			catch (final InterruptedException e) {
+				future.cancel(true);
+				Thread.currentThread().interrupt();
+				results.add(InstanceUpdateResult.failed(p.instance.getInstanceName(), "Interrupted", 0));
+			}
+			catch (final ExecutionException e) {
+				results.add(InstanceUpdateResult.failed(p.instance.getInstanceName(), e.getCause().toString(), 0));
+			}
+		}
+
+		try {
+			workflowJob.flushInstances();
+		}
+		catch (final IOException e) {
+			LOGGER.log(Level.WARNING, "Failed to save the workflows of " + workflowJob.getFullName(), e);
+		}
+		workflowJob.timer(WorkflowMetrics.ANY_TEMPLATE, WorkflowMetrics.UPDATE_ALL).record(start);
+		return results;
+	}
+
+	/**
+	 * An instance rendered and hashed, with what is wrong with the result if anything.
+	 */
+	private static final class Prepared {
+		final TemplateWorkflowInstance instance;
+		final Map<String, RenderedConfig> renderedJobs;
+		final Map<String, String> jobHashes;
+		final List<String> problems;
+
+		Prepared(final TemplateWorkflowInstance instance, final Map<String, RenderedConfig> renderedJobs, final Map<String, String> jobHashes,
+				final List<String> problems) {
+			this.instance = instance;
+			this.renderedJobs = renderedJobs;
+			this.jobHashes = jobHashes;
+			this.problems = problems;
+		}
+	}
+
+	private static Prepared prepare(final TemplatesWorkflowJob workflowJob, final TemplateWorkflowInstance instance) throws Exception {
+		final List<Job> relatedJobs = workflowJob.lookupRelatedJobs(instance.getTemplateName());
+		final Map<String, RenderedConfig> renderedJobs = workflowJob.render(instance.getTemplateName(), instance.getInstanceName(), instance.getJobParameters(),
+				instance.getComputedParameters(), relatedJobs, instance.getRelatedJobs());
+		return new Prepared(instance, renderedJobs, TemplatesWorkflowJob.hash(renderedJobs), Collections.<String>emptyList());
+	}
+
+	private static Prepared check(final TemplatesWorkflowJob workflowJob, final TemplateWorkflowInstance instance) {
+		final Prepared prepared;
+		try {
+			prepared = prepare(workflowJob, instance);
+		}
+		catch (final Exception e) {
+			return new Prepared(instance, null, null, Collections.singletonList(e.getMessage() != null ? e.getMessage() : e.toString()));
+		}
+
+		final long start = System.nanoTime();
+		final List<String> problems = new ArrayList<String>();
+		if (prepared.renderedJobs.isEmpty()) {
+			problems.add("Template '" + instance.getTemplateName() + "' has no building blocks");
+		}
+		for (final Map.Entry<String, RenderedConfig> renderedJob : prepared.renderedJobs.entrySet()) {
+			if (Jenkins.getInstance().getItem(renderedJob.getKey()) == null) {
+				problems.add("Job '" + renderedJob.getKey() + "' not found");
+			}
+			final String error = checkWellFormed(renderedJob.getValue());
+			if (error != null) {
+				problems.add("Job '" + renderedJob.getKey() + "' is not well formed XML: " + error);
+			}
+		}
+		workflowJob.timer(instance.getTemplateName(), WorkflowMetrics.VALIDATE).record(start);
+		return new Prepared(instance, prepared.renderedJobs, prepared.jobHashes, problems);
+	}
+
+	private static final SAXParserFactory SAX_PARSERS = SAXParserFactory.newInstance();
+	static {
+		// Rendered configs are only read here, never let them pull in anything from outside.
+		setFeature("http://xml.org/sax/features/external-general-entities", false);
+		setFeature("http://xml.org/sax/features/external-parameter-entities", false);
+		setFeature("http://apache.org/xml/features/nonvalidating/load-external-dtd", false);
+	}
+
+	private static void setFeature(final String feature, final boolean value) {
+		try {
+			SAX_PARSERS.setFeature(feature, value);
+		}
+		catch (final Exception e) {
+			LOGGER.log(Level.FINE, "XML parser does not support " + feature, e);
+		}
+	}
+
+	private static final ThreadLocal<SAXParser> SAX_PARSER = new ThreadLocal<SAXParser>() {
+		@Override
+		protected SAXParser initialValue() {
+			try {
+				synchronized (SAX_PARSERS) {
+					return SAX_PARSERS.newSAXParser();
+				}
+			}
+			catch (final ParserConfigurationException e) {
+				throw new IllegalStateException(e);
+			}
+			catch (final SAXException e) {
+				throw new IllegalStateException(e);
+			}
+		}
+	};
+
+	/**
+	 * @return what is wrong with the rendered config, null if it is well formed XML.
+	 */
+	static String checkWellFormed(final RenderedConfig config) {
+		final SAXParser parser = SAX_PARSER.get();
+		final InputStream in = config.openStream();
+		try {
+			parser.parse(in, new DefaultHandler());
+			return null;
+		}
+		catch (final SAXParseException e) {
+			return "line " + e.getLineNumber() + ", column " + e.getColumnNumber() + ": " + e.getMessage();
+		}
+		catch (final SAXException e) {
+			return e.getMessage();
+		}
+		catch (final IOException e) {
+			return e.toString();
+		}
+		finally {
+			parser.reset();
+			IOUtils.closeQuietly(in);
+		}
+	}
+
+	static InstanceUpdateResult update(final TemplatesWorkflowJob workflowJob, final TemplateWorkflowInstance instance, final UpdateProgress progress) {
+		final long start = System.currentTimeMillis();
+		final Prepared prepared;
+		try {
+			// Rendered without the lock, commit renders again if the instance changed meanwhile.
+			prepared = prepare(workflowJob, instance);
+		}
+		catch (final Exception e) {
+			return InstanceUpdateResult.failed(instance.getInstanceName(), e.toString(), System.currentTimeMillis() - start);
+		}
+		return commit(workflowJob, prepared, false, progress, start);
+	}
+
+	/**
+	 * Applies a prepared instance under its lock. The instance is looked up again once the lock is held:
+	 * one deleted meanwhile is skipped, one changed meanwhile is prepared again from what it is now, so neither change is undone.
+	 * The lock is only taken once applying is allowed, so it is never held while waiting for {@link #APPLY}.
+	 * @param validate whether an instance prepared again is checked as in the first phase of {@link #updateAllValidated}.
+	 */
+	private static InstanceUpdateResult commit(final TemplatesWorkflowJob workflowJob, final Prepared prepared, final boolean validate, final UpdateProgress progress,
+			final long start) {
+		final String instanceName = prepared.instance.getInstanceName();
+		try {
+			APPLY.acquire();
+			try {
+				final Lock lock = workflowJob.tryLock(instanceName);
+				try {
+					final TemplateWorkflowInstance current = workflowJob.getInstance(instanceName);
+					if (current == null) {
+						return InstanceUpdateResult.failed(instanceName, "Deleted while waiting to be updated, skipped", System.currentTimeMillis() - start);
+					}
+
+					Prepared fresh = prepared;
+					if (current != prepared.instance && changed(current, prepared.instance)) {
+						fresh = validate ? check(workflowJob, current) : prepare(workflowJob, current);
+						if (!fresh.problems.isEmpty()) {
+							return InstanceUpdateResult.failed(instanceName, "Changed while waiting to be updated: " + StringUtils.join(fresh.problems, "; "),
+									System.currentTimeMillis() - start);
+						}
+					}
+					return apply(workflowJob, fresh, current, progress, start);
+				}
+				finally {
+					lock.unlock();
+				}
+			}
+			finally {
+				APPLY.release();
+			}
+		}
+		catch (final Exception e) {
+			return InstanceUpdateResult.failed(instanceName, e.toString(), System.currentTimeMillis() - start);
+		}
+	}
+
+	private static boolean changed(final TemplateWorkflowInstance current, final TemplateWorkflowInstance prepared) {
+		return !current.getTemplateName().equals(prepared.getTemplateName()) || !current.getJobParameters().equals(prepared.getJobParameters())
+				|| !current.getComputedParameters().equals(prepared.getComputedParameters()) || !current.getRelatedJobs().equals(prepared.getRelatedJobs());
+	}
+
+	/**
+	 * @param current the instance as it is under the lock, what was rendered from it in <code>prepared</code>.
+	 */
+	private static InstanceUpdateResult apply(final TemplatesWorkflowJob workflowJob, final Prepared prepared, final TemplateWorkflowInstance current,
+			final UpdateProgress progress, final long start) throws Exception {
+		final Map<String, RenderedConfig> renderedJobs = prepared.renderedJobs;
+		final Map<String, String> jobHashes = prepared.jobHashes;
+		final Map<String, String> previousHashes = current.getJobHashes();
+
+		final Set<String> unchanged = new HashSet<String>();
+		for (final String jobName : renderedJobs.keySet()) {
+			if (TemplatesWorkflowJob.isUnchanged(jobName, jobHashes, previousHashes)) unchanged.add(jobName);
+		}
+
+		final Map<String, Boolean> isNewJobMap = workflowJob.apply(current.getTemplateName(), renderedJobs, jobHashes, previousHashes, false);
+
+		if (progress != null) {
+			for (final String jobName : renderedJobs.keySet()) {
+				progress.jobApplied(current.getInstanceName(), jobName, !unchanged.contains(jobName));
+			}
+		}
+
+		workflowJob.addTemplateInfo(current.getTemplateName(), current.getInstanceName(), current.getJobParameters(), current.getComputedParameters(),
+				current.getRelatedJobs(), isNewJobMap, jobHashes);
+		return InstanceUpdateResult.updated(current.getInstanceName(), renderedJobs.size(), renderedJobs.size() - unchanged.size(), System.currentTimeMillis() - start);
+	}
+}
@@ -0,0 +1,124 @@
+package org.jenkins.plugin.templateWorkflows;
+
+import java.util.Collections;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Case insensitive index of job (short) names to the full names of the jobs carrying them.
+ * Kept current by {@link TemplateItemListener}, so name validation does not have to walk every item on the instance.
+ * Lookups do not lock, each key maps to an immutable set that is replaced on write.
+ */
+public final class JobNameIndex {
+
+	private static final JobNameIndex INSTANCE = new JobNameIndex();
+
+	public static JobNameIndex get() {
+		return INSTANCE;
+	}
+
+	// folded short name -> job full names
+	private final Map<String, Set<String>> jobsByName = new ConcurrentHashMap<String, Set<String>>();
+	// all indexed full names, sorted so a folder's subtree is a contiguous range
+	private final TreeSet<String> fullNames = new TreeSet<String>();
+
+	private volatile boolean loaded;
+
+	JobNameIndex() {
+	}
+
+	static String fold(final String name) {
+		return name.toLowerCase(Locale.ENGLISH);
+	}
+
+	private static String shortName(final String fullName) {
+		return fullName.substring(fullName.lastIndexOf('/') + 1);
+	}
+
+	public boolean isLoaded() {
+		return this.loaded;
+	}
+
+	public void markLoaded() {
+		this.loaded = true;
+	}
+
+	public synchronized void clear() {
+		this.jobsByName.clear();
+		this.fullNames.clear();
+		this.loaded = false;
+	}
+
+	/**
+	 * @return full names of every job whose name equals the given one ignoring case, empty if there is none.
+	 */
+	public Set<String> lookup(final String name) {
+		if (name == null) return Collections.emptySet();
+		final Set<String> jobs = this.jobsByName.get(fold(name));
+		return jobs != null ? jobs : Collections.<String>emptySet();
+	}
+
+	public boolean contains(final String name) {
+		return !lookup(name).isEmpty();
+	}
+
+	public synchronized void add(final String fullName) {
+		if (!this.fullNames.add(fullName)) return;
+
+		final String key = fold(shortName(fullName));
+		final Set<String> jobs = this.jobsByName.get(key);
+		final Set<String> updated = jobs != null ? new TreeSet<String>(jobs) : new TreeSet<String>();
+		updated.add(fullName);
+		this.jobsByName.put(key, Collections.unmodifiableSet(updated));
+	}
+
+	public synchronized void remove(final String fullName) {
+		if (!this.fullNames.remove(fullName)) return;
+
+		final String key = fold(shortName(fullName));
+		final Set<String> jobs = this.jobsByName.get(key);
+		if (jobs == null) return;
+
+		final Set<String> updated = new TreeSet<String>(jobs);
+		updated.remove(fullName);
+		if (updated.isEmpty()) {
+			this.jobsByName.remove(key);
+		}
+		else {
+			this.jobsByName.put(key, Collections.unmodifiableSet(updated));
+		}
+	}
+
+	/**
+	 * Drops a job and, if it was a folder, everything that lived under it.
+	 */
+	public synchronized void removeSubtree(final String fullName) {
+		remove(fullName);
+		for (final String child : subtree(fullName)) {
+			remove(child);
+		}
+	}
+
+	/**
+	 * Moves a job and, if it was a folder, everything that lived under it.
+	 */
+	public synchronized void renameSubtree(final String oldFullName, final String newFullName) {
+		if (this.fullNames.contains(oldFullName)) {
+			remove(oldFullName);
+			add(newFullName);
+		}
+		final int prefixLength = oldFullName.length() + 1;
+		for (final String child : subtree(oldFullName)) {
+			remove(child);
+			add(newFullName + "/" + child.substring(prefixLength));
+		}
+	}
+
+	private Set<String> subtree(final String fullName) {
+		final String prefix = fullName + "/";
+		return new TreeSet<String>(this.fullNames.subSet(prefix, prefix + Character.MAX_VALUE));
+	}
+}
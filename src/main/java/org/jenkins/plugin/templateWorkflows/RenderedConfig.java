@@ -0,0 +1,47 @@
+package org.jenkins.plugin.templateWorkflows;
+
+import hudson.Util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Map;
+
+/**
+ * The config.xml of one generated job: a {@link CompiledTemplate} and the values to put in it, rendered only while it is read.
+ * Nothing the size of the config is kept, so any number of these can be held at once.
+ */
+final class RenderedConfig {
+
+	private final CompiledTemplate template;
+	private final Map<String, String> parameters;
+	private final Map<String, String> jobNames;
+
+	RenderedConfig(final CompiledTemplate template, final Map<String, String> parameters, final Map<String, String> jobNames) {
+		this.template = template;
+		this.parameters = parameters;
+		this.jobNames = jobNames;
+	}
+
+	/**
+	 * @return a new stream of the UTF-8 encoded config, to be closed by the caller.
+	 */
+	InputStream openStream() {
+		return this.template.openStream(this.parameters, this.jobNames);
+	}
+
+	/**
+	 * @return the same digest {@link Util#getDigestOf(String)} gives for the rendered text.
+	 */
+	String digest() throws IOException {
+		return Util.getDigestOf(openStream());
+	}
+
+	boolean isEmpty() {
+		return this.template.getLength() == 0;
+	}
+
+	@Override
+	public String toString() {
+		return this.template.render(this.parameters, this.jobNames);
+	}
+}
@@ -0,0 +1,97 @@
+package org.jenkins.plugin.templateWorkflows;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.lang.StringUtils;
+
+/**
+ * Building block configs, parsed once into {@link CompiledTemplate}s and kept until the job is saved again.
+ * An entry is also dropped if the file on disk no longer matches what was parsed, or if the set of
+ * building blocks of the template changed (job name slots depend on it).
+ */
+public final class TemplateCache {
+
+	private static final TemplateCache INSTANCE = new TemplateCache();
+
+	public static TemplateCache get() {
+		return INSTANCE;
+	}
+
+	private static final class Entry {
+		final long lastModified;
+		final long length;
+		final String jobNamesKey;
+		final CompiledTemplate template;
+
+		Entry(final long lastModified, final long length, final String jobNamesKey, final CompiledTemplate template) {
+			this.lastModified = lastModified;
+			this.length = length;
+			this.jobNamesKey = jobNamesKey;
+			this.template = template;
+		}
+	}
+
+	private static final int MAX_MATCHERS = 1024;
+
+	// building block job full name -> parsed config
+	private final Map<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+	// sorted template job names -> matcher shared by all the building blocks of that template
+	private final Map<String, TemplateMatcher> matchers = new ConcurrentHashMap<String, TemplateMatcher>();
+
+	TemplateCache() {
+	}
+
+	/**
+	 * @param templateJobNames names of all the building blocks of the template the job belongs to.
+	 * @param readTimer told how long reading and parsing took on a miss.
+	 */
+	public CompiledTemplate get(final String jobFullName, final File configFile, final Collection<String> templateJobNames, final WorkflowMetrics.Timer readTimer)
+			throws IOException {
+		final String jobNamesKey = StringUtils.join(new TreeSet<String>(templateJobNames), "/");
+		final long lastModified = configFile.lastModified();
+		final long length = configFile.length();
+
+		final Entry entry = this.entries.get(jobFullName);
+		if (entry != null && entry.lastModified == lastModified && entry.length == length && entry.jobNamesKey.equals(jobNamesKey)) {
+			return entry.template;
+		}
+
+		final long start = System.nanoTime();
+		final CompiledTemplate template = CompiledTemplate.compile(FileUtils.readFileToString(configFile, "UTF-8"), getMatcher(jobNamesKey, templateJobNames));
+		readTimer.record(start);
+		this.entries.put(jobFullName, new Entry(lastModified, length, jobNamesKey, template));
+		return template;
+	}
+
+	private TemplateMatcher getMatcher(final String jobNamesKey, final Collection<String> templateJobNames) {
+		TemplateMatcher matcher = this.matchers.get(jobNamesKey);
+		if (matcher == null) {
+			// Stale name sets are only left behind when templates gain or lose jobs, so a crude cap is enough.
+			if (this.matchers.size() >= MAX_MATCHERS) this.matchers.clear();
+			matcher = new TemplateMatcher(templateJobNames);
+			this.matchers.put(jobNamesKey, matcher);
+		}
+		return matcher;
+	}
+
+	public void invalidate(final String jobFullName) {
+		this.entries.remove(jobFullName);
+	}
+
+	/**
+	 * Drops a job and, if it was a folder, everything that lived under it.
+	 */
+	public void invalidateSubtree(final String fullName) {
+		this.entries.remove(fullName);
+		final String prefix = fullName + "/";
+		for (final String jobFullName : this.entries.keySet()) {
+			if (jobFullName.startsWith(prefix)) this.entries.remove(jobFullName);
+		}
+	}
+}
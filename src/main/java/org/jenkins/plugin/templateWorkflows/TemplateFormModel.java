@@ -0,0 +1,63 @@
+package org.jenkins.plugin.templateWorkflows;
+
+import java.util.Collections;
+import java.util.List;
+
+import net.sf.json.JSONArray;
+import net.sf.json.JSONObject;
+
+/**
+ * What the configure page needs to know about a template to draw its form: the building blocks,
+ * the parameters found in their configs, and which building blocks start the workflow.
+ * Immutable, kept in {@link FormModelCache} until a building block of the template changes.
+ */
+final class TemplateFormModel {
+
+	private final String templateName;
+	private final List<String> jobs;
+	private final List<String> parameters;
+	private final List<String> startingJobs;
+	private final JSONObject json;
+
+	/**
+	 * @param jobs names of the building blocks, in the order the form shows them.
+	 * @param parameters parameter names, sorted.
+	 * @param startingJobs names of the building blocks that start the workflow.
+	 */
+	TemplateFormModel(final String templateName, final List<String> jobs, final List<String> parameters, final List<String> startingJobs) {
+		this.templateName = templateName;
+		this.jobs = Collections.unmodifiableList(jobs);
+		this.parameters = Collections.unmodifiableList(parameters);
+		this.startingJobs = Collections.unmodifiableList(startingJobs);
+
+		final JSONObject json = new JSONObject();
+		json.put("template", templateName);
+		json.put("jobs", JSONArray.fromObject(jobs));
+		json.put("parameters", JSONArray.fromObject(parameters));
+		json.put("startingJobs", JSONArray.fromObject(startingJobs));
+		this.json = json;
+	}
+
+	String getTemplateName() {
+		return this.templateName;
+	}
+
+	List<String> getJobs() {
+		return this.jobs;
+	}
+
+	List<String> getParameters() {
+		return this.parameters;
+	}
+
+	List<String> getStartingJobs() {
+		return this.startingJobs;
+	}
+
+	/**
+	 * @return <code>{template, jobs, parameters, startingJobs}</code>, built once and shared, not to be changed.
+	 */
+	JSONObject toJSON() {
+		return this.json;
+	}
+}
@@ -0,0 +1,142 @@
+package org.jenkins.plugin.templateWorkflows;
+
+import hudson.Extension;
+import hudson.XmlFile;
+import hudson.model.Item;
+import hudson.model.ItemGroup;
+import hudson.model.Job;
+import hudson.model.Saveable;
+import hudson.model.listeners.ItemListener;
+import hudson.model.listeners.SaveableListener;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import jenkins.model.Jenkins;
+
+/**
+ * Keeps {@link TemplateRegistry}, {@link JobNameIndex}, {@link TemplateCache} and {@link FormModelCache} in step with item create, copy, rename, delete and save events.
+ */
+@Extension
+public class TemplateItemListener extends ItemListener {
+
+	// full names of jobs a workflow is writing right now, their config still carries the building block's property
+	private static final Set<String> GENERATING = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+	/**
+	 * Events for the job are ignored until {@link #generated(String)}, so a generated job is never taken for a building block.
+	 */
+	static void generating(final String fullName) {
+		GENERATING.add(fullName);
+	}
+
+	static void generated(final String fullName) {
+		GENERATING.remove(fullName);
+	}
+
+	/**
+	 * Full rebuild, only done once all items are loaded (or if the plugin was installed after that).
+	 */
+	static synchronized void reindex() {
+		final TemplateRegistry registry = TemplateRegistry.get();
+		final JobNameIndex names = JobNameIndex.get();
+		registry.clear();
+		names.clear();
+		FormModelCache.get().clear();
+		for (final Job job : Jenkins.getInstance().getAllItems(Job.class)) {
+			index(job);
+			names.add(job.getFullName());
+		}
+		registry.markLoaded();
+		names.markLoaded();
+	}
+
+	static void ensureLoaded() {
+		if (!TemplateRegistry.get().isLoaded() || !JobNameIndex.get().isLoaded()) reindex();
+	}
+
+	private static void index(final Job job) {
+		final TemplateWorkflowProperty t = (TemplateWorkflowProperty) job.getProperty(TemplateWorkflowProperty.class);
+		final Set<String> templateKeys = new HashSet<String>(TemplateRegistry.get().getTemplateKeys(job.getFullName()));
+		TemplateRegistry.get().update(job.getFullName(), t != null ? t.getTemplateName() : null, t != null && t.getIsStartingWorkflowJob());
+		templateKeys.addAll(TemplateRegistry.get().getTemplateKeys(job.getFullName()));
+		TemplateCache.get().invalidate(job.getFullName());
+		FormModelCache.get().invalidate(templateKeys);
+	}
+
+	private static void indexAll(final Item item, final boolean names) {
+		for (final Job job : item.getAllJobs()) {
+			if (!GENERATING.contains(job.getFullName())) index(job);
+			if (names) JobNameIndex.get().add(job.getFullName());
+		}
+	}
+
+	private static String fullName(final ItemGroup parent, final String name) {
+		final String parentName = parent.getFullName();
+		return parentName == null || parentName.length() == 0 ? name : parentName + "/" + name;
+	}
+
+	@Override
+	public void onLoaded() {
+		reindex();
+	}
+
+	@Override
+	public void onCreated(final Item item) {
+		indexAll(item, true);
+	}
+
+	@Override
+	public void onCopied(final Item src, final Item item) {
+		indexAll(item, true);
+	}
+
+	@Override
+	public void onUpdated(final Item item) {
+		indexAll(item, false);
+	}
+
+	@Override
+	public void onDeleted(final Item item) {
+		TemplateRegistry.get().removeSubtree(item.getFullName());
+		JobNameIndex.get().removeSubtree(item.getFullName());
+		TemplateCache.get().invalidateSubtree(item.getFullName());
+		FormModelCache.get().clear();
+		if (item instanceof TemplatesWorkflowJob) {
+			WriteBehindSaver.cancel((TemplatesWorkflowJob) item);
+			WorkflowMetrics.get().remove(item.getFullName());
+		}
+	}
+
+	@Override
+	public void onRenamed(final Item item, final String oldName, final String newName) {
+		final String oldFullName = fullName(item.getParent(), oldName);
+		TemplateRegistry.get().renameSubtree(oldFullName, item.getFullName());
+		JobNameIndex.get().renameSubtree(oldFullName, item.getFullName());
+		TemplateCache.get().invalidateSubtree(oldFullName);
+		FormModelCache.get().clear();
+		WorkflowMetrics.get().remove(oldFullName);
+	}
+
+	@Override
+	public void onBeforeShutdown() {
+		WriteBehindSaver.flushAll();
+	}
+
+	/**
+	 * Building block properties are usually added or removed through a plain {@link Job#save()}, which does not fire {@link #onUpdated(Item)}.
+	 * A saved building block also gets the instances of its template updated, see {@link TemplatePropagator}.
+	 */
+	@Extension
+	public static class SaveListener extends SaveableListener {
+		@Override
+		public void onChange(final Saveable o, final XmlFile file) {
+			if (o instanceof Job && !GENERATING.contains(((Job) o).getFullName())) {
+				index((Job) o);
+				TemplatePropagator.buildingBlockSaved((Job) o);
+			}
+		}
+	}
+}
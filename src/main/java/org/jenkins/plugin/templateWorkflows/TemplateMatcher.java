@@ -0,0 +1,234 @@
+package org.jenkins.plugin.templateWorkflows;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * Finds every @@parameter@@ and every reference to one of a template's job names in a single pass over a config.xml.
+ * Job names are matched with an Aho-Corasick automaton built once per set of names, so the cost of a scan
+ * does not grow with the number of job names.
+ *
+ * A job name is only a reference in text, never in markup: it has to be the whole (whitespace trimmed) text of an element,
+ * or a whole item of a comma separated list in the text of an element. It is never replaced as part of a longer word.
+ */
+public final class TemplateMatcher {
+
+	static final byte PARAMETER = 1;
+	static final byte JOB = 2;
+
+	/**
+	 * A match, covering [start, end) of the scanned text.
+	 * For parameters the name is the text between the @@s, for jobs it is the template job name.
+	 */
+	static final class Slot {
+		final int start;
+		final int end;
+		final byte kind;
+		final String name;
+
+		Slot(final int start, final int end, final byte kind, final String name) {
+			this.start = start;
+			this.end = end;
+			this.kind = kind;
+			this.name = name;
+		}
+	}
+
+	// Earliest first, parameters win over job names that overlap them, longer job names win over shorter ones.
+	private static final Comparator<Slot> ORDER = new Comparator<Slot>() {
+		public int compare(final Slot a, final Slot b) {
+			if (a.start != b.start) return a.start < b.start ? -1 : 1;
+			if (a.kind != b.kind) return a.kind - b.kind;
+			return b.end - a.end;
+		}
+	};
+
+	private final String[] names;
+
+	// automaton, one entry per state: sorted transition chars, their target states, failure link and accepted names
+	private final char[][] edgeChars;
+	private final int[][] edgeTargets;
+	private final int[] failure;
+	private final int[][] accepts;
+
+	public TemplateMatcher(final Collection<String> jobNames) {
+		final TreeSet<String> distinct = new TreeSet<String>();
+		for (final String name : jobNames) {
+			if (name != null && name.length() > 0) distinct.add(name);
+		}
+		this.names = distinct.toArray(new String[distinct.size()]);
+
+		// trie
+		final List<TreeMap<Character, Integer>> edges = new ArrayList<TreeMap<Character, Integer>>();
+		final List<List<Integer>> outputs = new ArrayList<List<Integer>>();
+		edges.add(new TreeMap<Character, Integer>());
+		outputs.add(new ArrayList<Integer>());
+		for (int n = 0; n < this.names.length; n++) {
+			int state = 0;
+			for (final char c : this.names[n].toCharArray()) {
+				Integer next = edges.get(state).get(c);
+				if (next == null) {
+					next = edges.size();
+					edges.add(new TreeMap<Character, Integer>());
+					outputs.add(new ArrayList<Integer>());
+					edges.get(state).put(c, next);
+				}
+				state = next;
+			}
+			outputs.get(state).add(n);
+		}
+
+		final int states = edges.size();
+		this.edgeChars = new char[states][];
+		this.edgeTargets = new int[states][];
+		this.failure = new int[states];
+		this.accepts = new int[states][];
+		for (int s = 0; s < states; s++) {
+			final Map<Character, Integer> e = edges.get(s);
+			this.edgeChars[s] = new char[e.size()];
+			this.edgeTargets[s] = new int[e.size()];
+			int i = 0;
+			for (final Map.Entry<Character, Integer> entry : e.entrySet()) {
+				this.edgeChars[s][i] = entry.getKey();
+				this.edgeTargets[s][i] = entry.getValue();
+				i++;
+			}
+		}
+
+		// failure links, breadth first
+		final LinkedList<Integer> queue = new LinkedList<Integer>();
+		for (final int child : this.edgeTargets[0]) {
+			this.failure[child] = 0;
+			queue.add(child);
+		}
+		while (!queue.isEmpty()) {
+			final int s = queue.removeFirst();
+			for (int i = 0; i < this.edgeChars[s].length; i++) {
+				final int child = this.edgeTargets[s][i];
+				int f = this.failure[s];
+				while (f != 0 && step(f, this.edgeChars[s][i]) < 0) {
+					f = this.failure[f];
+				}
+				final int target = step(f, this.edgeChars[s][i]);
+				this.failure[child] = target >= 0 ? target : 0;
+				outputs.get(child).addAll(outputs.get(this.failure[child]));
+				queue.add(child);
+			}
+		}
+
+		for (int s = 0; s < states; s++) {
+			final List<Integer> o = outputs.get(s);
+			this.accepts[s] = new int[o.size()];
+			for (int i = 0; i < o.size(); i++) {
+				this.accepts[s][i] = o.get(i);
+			}
+		}
+	}
+
+	private int step(final int state, final char c) {
+		final int i = Arrays.binarySearch(this.edgeChars[state], c);
+		return i >= 0 ? this.edgeTargets[state][i] : -1;
+	}
+
+	/**
+	 * @return all non overlapping parameter and job name slots in the text, in order.
+	 */
+	List<Slot> scan(final String text) {
+		final List<Slot> candidates = new ArrayList<Slot>();
+		final int length = text.length();
+		int paramResume = 0;
+		int state = 0;
+		// whether the last angle bracket was a '>', job names can not contain either so this holds for a whole match
+		boolean inText = false;
+
+		for (int i = 0; i < length; i++) {
+			final char c = text.charAt(i);
+			if (c == '<') {
+				inText = false;
+			}
+			else if (c == '>') {
+				inText = true;
+			}
+
+			if (c == '@' && i >= paramResume && i + 1 < length && text.charAt(i + 1) == '@') {
+				final int close = findParameterClose(text, i + 2);
+				if (close >= 0) {
+					candidates.add(new Slot(i, close + 2, PARAMETER, text.substring(i + 2, close)));
+					paramResume = close + 2;
+				}
+			}
+
+			int next = step(state, c);
+			while (next < 0 && state != 0) {
+				state = this.failure[state];
+				next = step(state, c);
+			}
+			state = next >= 0 ? next : 0;
+
+			if (!inText) continue;
+			for (final int n : this.accepts[state]) {
+				final Slot slot = jobSlot(text, i + 1 - this.names[n].length(), i + 1, this.names[n]);
+				if (slot != null) candidates.add(slot);
+			}
+		}
+
+		if (candidates.isEmpty()) return Collections.emptyList();
+
+		Collections.sort(candidates, ORDER);
+		final List<Slot> slots = new ArrayList<Slot>(candidates.size());
+		int pos = 0;
+		for (final Slot slot : candidates) {
+			if (slot.start < pos) continue;
+			slots.add(slot);
+			pos = slot.end;
+		}
+		return slots;
+	}
+
+	/**
+	 * Same as the lazy '@@(.*?)@@': the closing @@ has to be on the same line.
+	 */
+	private static int findParameterClose(final String text, final int from) {
+		final int length = text.length();
+		for (int i = from; i + 1 < length; i++) {
+			final char c = text.charAt(i);
+			if (c == '\n' || c == '\r') return -1;
+			if (c == '@' && text.charAt(i + 1) == '@') return i;
+		}
+		return -1;
+	}
+
+	private static Slot jobSlot(final String text, final int start, final int end, final String name) {
+		int before = start;
+		while (before > 0 && isWhitespace(text.charAt(before - 1))) {
+			before--;
+		}
+		int after = end;
+		while (after < text.length() && isWhitespace(text.charAt(after))) {
+			after++;
+		}
+
+		final char open = before > 0 ? text.charAt(before - 1) : 0;
+		final char close = after < text.length() ? text.charAt(after) : 0;
+
+		// Anything else next to the name means it is part of a longer word, or of a sentence.
+		if (open != '>' && open != ',') return null;
+		if (close != '<' && close != ',') return null;
+
+		if (open == '>' && close == '<') return text.startsWith("</", after) ? new Slot(before, after, JOB, name) : null;
+		if (open == ',') return new Slot(before, end, JOB, name);
+		return new Slot(start, after, JOB, name);
+	}
+
+	private static boolean isWhitespace(final char c) {
+		return c == ' ' || c == '\t' || c == '\n' || c == '\r' || c == '\f' || c == '\u000B';
+	}
+}
@@ -0,0 +1,133 @@
+package org.jenkins.plugin.templateWorkflows;
+
+import hudson.model.Job;
+import hudson.security.ACL;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import jenkins.model.Jenkins;
+
+import org.acegisecurity.context.SecurityContext;
+import org.acegisecurity.context.SecurityContextHolder;
+
+/**
+ * Re-renders the instances of a template once its building blocks have been saved and then left alone for
+ * <code>org.jenkins.plugin.templateWorkflows.TemplatePropagator.quietPeriod</code> ms (5000 by default, negative turns this off).
+ * Only instances of the changed template are updated, each workflow job in a run of its own.
+ * A workflow job that is already running an update is tried again after another quiet period.
+ */
+final class TemplatePropagator {
+
+	private static final Logger LOGGER = Logger.getLogger(TemplatePropagator.class.getName());
+
+	static final long QUIET_PERIOD_MILLIS = Long.getLong(TemplatePropagator.class.getName() + ".quietPeriod", 5000);
+
+	// template key, or template key + '\n' + workflow job for retries -> the one that will run
+	private static final Map<String, Pending> PENDING = new HashMap<String, Pending>();
+
+	private static ScheduledExecutorService timer;
+
+	private TemplatePropagator() {
+	}
+
+	private static synchronized ScheduledExecutorService timer() {
+		if (timer == null) {
+			timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+				public Thread newThread(final Runnable r) {
+					final Thread t = new Thread(r, "Template workflow propagation");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+		}
+		return timer;
+	}
+
+	private static final class Pending implements Runnable {
+		final String key;
+		final String templateName;
+		final String changedJob;
+		// only this workflow job, null for all of them
+		final String workflowJob;
+
+		Pending(final String key, final String templateName, final String changedJob, final String workflowJob) {
+			this.key = key;
+			this.templateName = templateName;
+			this.changedJob = changedJob;
+			this.workflowJob = workflowJob;
+		}
+
+		public void run() {
+			synchronized (PENDING) {
+				if (PENDING.get(this.key) != this) return; // Superseded by a later save.
+				PENDING.remove(this.key);
+			}
+
+			final SecurityContext old = ACL.impersonate(ACL.SYSTEM);
+			try {
+				propagate(this);
+			}
+			catch (final RuntimeException e) {
+				LOGGER.log(Level.WARNING, "Failed to update the workflows of template " + this.templateName, e);
+			}
+			finally {
+				SecurityContextHolder.setContext(old);
+			}
+		}
+	}
+
+	static void buildingBlockSaved(final Job job) {
+		if (QUIET_PERIOD_MILLIS < 0) return;
+
+		final TemplateWorkflowProperty property = (TemplateWorkflowProperty) job.getProperty(TemplateWorkflowProperty.class);
+		if (property == null || property.getTemplateName() == null) return;
+
+		for (String templateName : property.getTemplateName().split(",")) {
+			templateName = templateName.trim();
+			if (templateName.length() == 0) continue;
+			schedule(templateName, job.getFullName(), null);
+		}
+	}
+
+	/**
+	 * (Re)starts the quiet period of the template, so a burst of saves ends up as one update.
+	 */
+	private static void schedule(final String templateName, final String changedJob, final String workflowJob) {
+		final String key = workflowJob == null ? TemplateRegistry.key(templateName) : TemplateRegistry.key(templateName) + '\n' + workflowJob;
+		final Pending pending = new Pending(key, templateName, changedJob, workflowJob);
+		synchronized (PENDING) {
+			PENDING.put(key, pending);
+		}
+		timer().schedule(pending, QUIET_PERIOD_MILLIS, TimeUnit.MILLISECONDS);
+	}
+
+	private static void propagate(final Pending pending) {
+		for (final TemplatesWorkflowJob workflowJob : Jenkins.getInstance().getAllItems(TemplatesWorkflowJob.class)) {
+			if (pending.workflowJob != null && !pending.workflowJob.equals(workflowJob.getFullName())) continue;
+			if (!workflowJob.isInScope(pending.changedJob)) continue;
+
+			final List<TemplateWorkflowInstance> instances = workflowJob.getTemplateInstances(pending.templateName);
+			if (instances.isEmpty()) continue;
+
+			try {
+				final String reason = "Updating " + instances.size() + " workflows of template '" + pending.templateName + "' after '" + pending.changedJob + "' was saved";
+				// A broken building block then fails the run before any generated job is touched.
+				if (workflowJob.startUpdate(instances, reason, true) == null) {
+					schedule(pending.templateName, pending.changedJob, workflowJob.getFullName());
+				}
+			}
+			catch (final IOException e) {
+				LOGGER.log(Level.WARNING, "Failed to start updating the workflows of " + workflowJob.getFullName(), e);
+			}
+		}
+	}
+}
@@ -0,0 +1,254 @@
+package org.jenkins.plugin.templateWorkflows;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Locale;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Index of template name to the building block jobs that carry a {@link TemplateWorkflowProperty} for it.
+ * Jobs are tracked by full name and template names are matched case insensitively, same as the old full scans did.
+ * Kept current by {@link TemplateItemListener}, so lookups never have to walk every item on the instance.
+ */
+public final class TemplateRegistry {
+
+	private static final TemplateRegistry INSTANCE = new TemplateRegistry();
+
+	public static TemplateRegistry get() {
+		return INSTANCE;
+	}
+
+	// template key (lower case) -> job full names, sorted so a folder's jobs are one range
+	private final Map<String, NavigableSet<String>> jobsByTemplate = new HashMap<String, NavigableSet<String>>();
+	// template key (lower case) -> name as it was first typed
+	private final Map<String, String> displayNames = new HashMap<String, String>();
+	// job full name -> template keys
+	private final Map<String, Set<String>> templatesByJob = new HashMap<String, Set<String>>();
+	// template key (lower case) -> full names of the jobs that start its workflows
+	private final Map<String, NavigableSet<String>> startingJobsByTemplate = new HashMap<String, NavigableSet<String>>();
+
+	private volatile boolean loaded;
+
+	TemplateRegistry() {
+	}
+
+	static String key(final String templateName) {
+		return templateName == null ? null : templateName.trim().toLowerCase(Locale.ENGLISH);
+	}
+
+	public boolean isLoaded() {
+		return this.loaded;
+	}
+
+	public synchronized void clear() {
+		this.jobsByTemplate.clear();
+		this.displayNames.clear();
+		this.templatesByJob.clear();
+		this.startingJobsByTemplate.clear();
+		this.loaded = false;
+	}
+
+	public void markLoaded() {
+		this.loaded = true;
+	}
+
+	/**
+	 * @param templateNames the raw, comma separated value of {@link TemplateWorkflowProperty#getTemplateName()},
+	 * or null if the job is not (or no longer) a building block.
+	 */
+	public void update(final String jobFullName, final String templateNames) {
+		update(jobFullName, templateNames, false);
+	}
+
+	/**
+	 * @param startingJob whether {@link TemplateWorkflowProperty#getIsStartingWorkflowJob()} is set.
+	 */
+	public synchronized void update(final String jobFullName, final String templateNames, final boolean startingJob) {
+		removeJob(jobFullName);
+		if (templateNames == null) return;
+
+		final Set<String> keys = new LinkedHashSet<String>();
+		for (String tName : templateNames.split(",")) {
+			tName = tName.trim();
+			if (tName.length() == 0) continue;
+
+			final String key = key(tName);
+			keys.add(key);
+			if (!this.displayNames.containsKey(key)) {
+				this.displayNames.put(key, tName);
+			}
+
+			NavigableSet<String> jobs = this.jobsByTemplate.get(key);
+			if (jobs == null) {
+				jobs = new TreeSet<String>();
+				this.jobsByTemplate.put(key, jobs);
+			}
+			jobs.add(jobFullName);
+			if (startingJob) {
+				addStartingJob(key, jobFullName);
+			}
+		}
+
+		if (!keys.isEmpty()) {
+			this.templatesByJob.put(jobFullName, keys);
+		}
+	}
+
+	public synchronized void remove(final String jobFullName) {
+		removeJob(jobFullName);
+	}
+
+	/**
+	 * Drops a job and, if it was a folder, everything that lived under it.
+	 */
+	public synchronized void removeSubtree(final String fullName) {
+		removeJob(fullName);
+		final String prefix = fullName + "/";
+		for (final String jobFullName : new TreeSet<String>(this.templatesByJob.keySet())) {
+			if (jobFullName.startsWith(prefix)) removeJob(jobFullName);
+		}
+	}
+
+	/**
+	 * Moves a job and, if it was a folder, everything that lived under it.
+	 */
+	public synchronized void renameSubtree(final String oldFullName, final String newFullName) {
+		final String prefix = oldFullName + "/";
+		for (final String jobFullName : new TreeSet<String>(this.templatesByJob.keySet())) {
+			if (jobFullName.equals(oldFullName)) {
+				moveJob(jobFullName, newFullName);
+			}
+			else if (jobFullName.startsWith(prefix)) {
+				moveJob(jobFullName, newFullName + "/" + jobFullName.substring(prefix.length()));
+			}
+		}
+	}
+
+	/**
+	 * @return full names of the building block jobs of the given template, sorted.
+	 */
+	public Set<String> getJobNames(final String templateName) {
+		return getJobNames(templateName, "");
+	}
+
+	/**
+	 * @param scope full name of the folder to look in, empty for all of Jenkins.
+	 * @return full names of the building block jobs of the given template in the folder or below it, sorted.
+	 */
+	public synchronized Set<String> getJobNames(final String templateName, final String scope) {
+		return inScope(this.jobsByTemplate.get(key(templateName)), scope);
+	}
+
+	/**
+	 * @return full names of the building block jobs of the given template that start its workflows, sorted.
+	 */
+	public Set<String> getStartingJobNames(final String templateName) {
+		return getStartingJobNames(templateName, "");
+	}
+
+	/**
+	 * @param scope as for {@link #getJobNames(String, String)}.
+	 */
+	public synchronized Set<String> getStartingJobNames(final String templateName, final String scope) {
+		return inScope(this.startingJobsByTemplate.get(key(templateName)), scope);
+	}
+
+	/**
+	 * @return the template's name as it was first typed, null if no job is a building block of it.
+	 */
+	public synchronized String getTemplateName(final String templateName) {
+		final String key = key(templateName);
+		return this.jobsByTemplate.containsKey(key) ? this.displayNames.get(key) : null;
+	}
+
+	public Set<String> getTemplateNames() {
+		return getTemplateNames("");
+	}
+
+	/**
+	 * @param scope as for {@link #getJobNames(String, String)}.
+	 * @return names of the templates with at least one building block in the folder or below it.
+	 */
+	public synchronized Set<String> getTemplateNames(final String scope) {
+		final Set<String> ret = new TreeSet<String>(String.CASE_INSENSITIVE_ORDER);
+		for (final Map.Entry<String, NavigableSet<String>> jobs : this.jobsByTemplate.entrySet()) {
+			if (scope.length() == 0 || !range(jobs.getValue(), scope).isEmpty()) ret.add(this.displayNames.get(jobs.getKey()));
+		}
+		return ret;
+	}
+
+	private static Set<String> inScope(final NavigableSet<String> jobs, final String scope) {
+		if (jobs == null) return Collections.emptySet();
+		return new LinkedHashSet<String>(scope.length() == 0 ? jobs : range(jobs, scope));
+	}
+
+	/**
+	 * @return the jobs below the folder, found by their common prefix without walking the others.
+	 */
+	private static NavigableSet<String> range(final NavigableSet<String> jobs, final String scope) {
+		final String prefix = scope + "/";
+		return jobs.subSet(prefix, true, prefix + Character.MAX_VALUE, false);
+	}
+
+	/**
+	 * @return keys of the templates the job is a building block of, empty if none.
+	 */
+	public synchronized Set<String> getTemplateKeys(final String jobFullName) {
+		final Set<String> keys = this.templatesByJob.get(jobFullName);
+		if (keys == null) return Collections.emptySet();
+		return new LinkedHashSet<String>(keys);
+	}
+
+	public synchronized boolean isBuildingBlock(final String jobFullName) {
+		return this.templatesByJob.containsKey(jobFullName);
+	}
+
+	private void moveJob(final String oldFullName, final String newFullName) {
+		final Set<String> keys = this.templatesByJob.remove(oldFullName);
+		if (keys == null) return;
+
+		for (final String key : keys) {
+			final NavigableSet<String> jobs = this.jobsByTemplate.get(key);
+			jobs.remove(oldFullName);
+			jobs.add(newFullName);
+
+			final NavigableSet<String> startingJobs = this.startingJobsByTemplate.get(key);
+			if (startingJobs != null && startingJobs.remove(oldFullName)) {
+				startingJobs.add(newFullName);
+			}
+		}
+		this.templatesByJob.put(newFullName, keys);
+	}
+
+	private void removeJob(final String jobFullName) {
+		final Set<String> keys = this.templatesByJob.remove(jobFullName);
+		if (keys == null) return;
+
+		for (final String key : keys) {
+			final NavigableSet<String> jobs = this.jobsByTemplate.get(key);
+			jobs.remove(jobFullName);
+			if (jobs.isEmpty()) {
+				this.jobsByTemplate.remove(key);
+				this.displayNames.remove(key);
+			}
+
+			final NavigableSet<String> startingJobs = this.startingJobsByTemplate.get(key);
+			if (startingJobs != null && startingJobs.remove(jobFullName) && startingJobs.isEmpty()) {
+				this.startingJobsByTemplate.remove(key);
+			}
+		}
+	}
+
+	private void addStartingJob(final String key, final String jobFullName) {
+		NavigableSet<String> startingJobs = this.startingJobsByTemplate.get(key);
+		if (startingJobs == null) {
+			startingJobs = new TreeSet<String>();
+			this.startingJobsByTemplate.put(key, startingJobs);
+		}
+		startingJobs.add(jobFullName);
+	}
+}
@@ -1,27 +1,138 @@
 package org.jenkins.plugin.templateWorkflows;
 
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.TreeSet;
 
 import org.kohsuke.stapler.export.Exported;
 import org.kohsuke.stapler.export.ExportedBean;
 
+/**
+ * One instance of a template. Immutable: changes replace the instance, so it can be read without locking.
+ *
+ * Held compactly, there can be tens of thousands: the parameter and building block names live in an {@link InstanceSchema}
+ * shared by all instances of the template, the instance only keeps arrays of values in the schema's order.
+ * The maps are views over those arrays. Files keep the map format, see {@link #writeReplace()}.
+ */
 @ExportedBean
 public class TemplateWorkflowInstance implements Comparable<TemplateWorkflowInstance> {
 
+	private static final byte CREATED_UNKNOWN = 0;
+	private static final byte CREATED_NO = 1;
+	private static final byte CREATED_YES = 2;
+
+	// The maps are only set while reading or writing the file, see readResolve and writeReplace.
 	// mark if the job was create during the template definition - for delete logic
 	private Map<String, Boolean> isNewJobMap;
 	private String instanceName;
 	private String templateName;
 	private Map<String, String> jobParameters;
 	private Map<String, String> relatedJobs;
+	// generated job name -> digest of the config last rendered for it, null for instances saved before it was kept
+	private Map<String, String> jobHashes;
+	// names of the parameters whose values are expressions, see ComputedParameters; null for instances saved before there were any
+	private Set<String> computedParameters;
+
+	private transient InstanceSchema schema;
+	// by parameter index of the schema
+	private transient String[] parameterValues;
+	// by building block index of the schema: the job generated for it, whether the workflow created that job, and the digest of its config
+	private transient String[] jobNames;
+	private transient byte[] created;
+	private transient String[] hashes;
+	// by parameter index of the schema, null if no parameter is computed
+	private transient boolean[] computed;
 
-	public TemplateWorkflowInstance(final String templateName, final String instanceName, final Map<String, Boolean> isNewJobMap) {
+	/**
+	 * @param jobParameters parameter name -> value.
+	 * @param relatedJobs building block name -> name of the job generated for it.
+	 * @param isNewJobMap generated job name -> whether the workflow created it, rather than using an existing job.
+	 * @param jobHashes generated job name -> digest of its config, may be null.
+	 * @param computedParameters names of the parameters whose values are evaluated as expressions, may be null.
+	 */
+	public TemplateWorkflowInstance(final String templateName, final String instanceName, final Map<String, String> jobParameters,
+			final Map<String, String> relatedJobs, final Map<String, Boolean> isNewJobMap, final Map<String, String> jobHashes,
+			final Set<String> computedParameters) {
 		this.templateName = templateName;
 		this.instanceName = instanceName;
-		this.isNewJobMap = isNewJobMap;
-		this.jobParameters = new ConcurrentHashMap<String, String>();
-		this.relatedJobs = new ConcurrentHashMap<String, String>();
+		compact(jobParameters, relatedJobs, isNewJobMap, jobHashes, computedParameters);
+	}
+
+	private void compact(final Map<String, String> jobParameters, final Map<String, String> relatedJobs, final Map<String, Boolean> isNewJobMap,
+			final Map<String, String> jobHashes, final Set<String> computedParameters) {
+		final Map<String, String> params = jobParameters != null ? jobParameters : Collections.<String, String>emptyMap();
+		final Map<String, String> jobs = relatedJobs != null ? relatedJobs : Collections.<String, String>emptyMap();
+		this.schema = InstanceSchema.of(params.keySet(), jobs.keySet());
+
+		this.parameterValues = new String[this.schema.parameterCount()];
+		for (int i = 0; i < this.parameterValues.length; i++) {
+			this.parameterValues[i] = params.get(this.schema.parameter(i));
+		}
+		this.computed = null;
+		if (computedParameters != null) {
+			for (final String name : computedParameters) {
+				final int i = this.schema.parameterIndex(name);
+				if (i < 0) continue;
+				if (this.computed == null) this.computed = new boolean[this.parameterValues.length];
+				this.computed[i] = true;
+			}
+		}
+
+		this.jobNames = new String[this.schema.jobCount()];
+		this.created = new byte[this.jobNames.length];
+		this.hashes = jobHashes != null && !jobHashes.isEmpty() ? new String[this.jobNames.length] : null;
+		for (int i = 0; i < this.jobNames.length; i++) {
+			final String jobName = jobs.get(this.schema.job(i));
+			this.jobNames[i] = jobName;
+			final Boolean isNew = isNewJobMap != null ? isNewJobMap.get(jobName) : null;
+			this.created[i] = isNew == null ? CREATED_UNKNOWN : isNew ? CREATED_YES : CREATED_NO;
+			if (this.hashes != null) this.hashes[i] = jobHashes.get(jobName);
+		}
+	}
+
+	private Object readResolve() {
+		compact(this.jobParameters, this.relatedJobs, this.isNewJobMap, this.jobHashes, this.computedParameters);
+		this.jobParameters = null;
+		this.relatedJobs = null;
+		this.isNewJobMap = null;
+		this.jobHashes = null;
+		this.computedParameters = null;
+		return this;
+	}
+
+	/**
+	 * Writes a copy with the maps filled in, so files look the same as before instances were compact.
+	 */
+	private Object writeReplace() {
+		final TemplateWorkflowInstance copy = new TemplateWorkflowInstance(this);
+		copy.jobParameters = new HashMap<String, String>(getJobParameters());
+		copy.relatedJobs = new HashMap<String, String>(getRelatedJobs());
+		copy.isNewJobMap = new HashMap<String, Boolean>(getIsNewJobMap());
+		if (this.hashes != null) {
+			copy.jobHashes = new HashMap<String, String>();
+			for (int i = 0; i < this.hashes.length; i++) {
+				if (this.hashes[i] != null) copy.jobHashes.put(this.jobNames[i], this.hashes[i]);
+			}
+		}
+		if (this.computed != null) copy.computedParameters = new TreeSet<String>(getComputedParameters());
+		return copy;
+	}
+
+	private TemplateWorkflowInstance(final TemplateWorkflowInstance other) {
+		this.templateName = other.templateName;
+		this.instanceName = other.instanceName;
+		this.schema = other.schema;
+		this.parameterValues = other.parameterValues;
+		this.jobNames = other.jobNames;
+		this.created = other.created;
+		this.hashes = other.hashes;
+		this.computed = other.computed;
 	}
 
 	@Exported
@@ -36,33 +147,179 @@ public class TemplateWorkflowInstance implements Comparable<TemplateWorkflowInst
 
 	@Exported
 	public int getRelatedJobsSize() {
-		return this.relatedJobs.size();
+		return this.jobNames.length;
 	}
 
+	/**
+	 * @return building block name -> generated job name, read only.
+	 */
 	@Exported
 	public Map<String, String> getRelatedJobs() {
-		return this.relatedJobs;
+		return new ArrayMap<String>(this.jobNames) {
+			@Override
+			String key(final int i) {
+				return TemplateWorkflowInstance.this.schema.job(i);
+			}
+
+			@Override
+			int indexOf(final Object key) {
+				return TemplateWorkflowInstance.this.schema.jobIndex(key);
+			}
+		};
 	}
 
+	/**
+	 * @return parameter name -> value, read only.
+	 */
 	@Exported
 	public Map<String, String> getJobParameters() {
-		return this.jobParameters;
+		return new ArrayMap<String>(this.parameterValues) {
+			@Override
+			String key(final int i) {
+				return TemplateWorkflowInstance.this.schema.parameter(i);
+			}
+
+			@Override
+			int indexOf(final Object key) {
+				return TemplateWorkflowInstance.this.schema.parameterIndex(key);
+			}
+		};
 	}
 
+	/**
+	 * @return names of the parameters whose values are evaluated as expressions, read only, empty if none are.
+	 */
+	@Exported
+	public Set<String> getComputedParameters() {
+		if (this.computed == null) return Collections.emptySet();
+
+		final Set<String> ret = new TreeSet<String>();
+		for (int i = 0; i < this.computed.length; i++) {
+			if (this.computed[i]) ret.add(this.schema.parameter(i));
+		}
+		return Collections.unmodifiableSet(ret);
+	}
+
+	/**
+	 * @return whether the workflow created the job, false for jobs it only used and for jobs that are not part of the instance.
+	 */
 	@Exported
 	public boolean isJobWasCreateByWorkflow(final String jobName) {
-		return this.isNewJobMap.get(jobName);
+		final int i = generatedIndex(jobName);
+		return i >= 0 && this.created[i] == CREATED_YES;
 	}
 
-	public void setJobParameters(final Map<String, String> jobParameters) {
-		this.jobParameters = jobParameters;
+	/**
+	 * @return generated job name -> whether the workflow created it, read only.
+	 */
+	Map<String, Boolean> getIsNewJobMap() {
+		final Boolean[] values = new Boolean[this.created.length];
+		for (int i = 0; i < values.length; i++) {
+			values[i] = this.created[i] == CREATED_UNKNOWN ? null : Boolean.valueOf(this.created[i] == CREATED_YES);
+		}
+		return new GeneratedJobMap<Boolean>(values);
 	}
 
-	public void setRelatedJobs(final Map<String, String> relatedJobs) {
-		this.relatedJobs = relatedJobs;
+	/**
+	 * @return generated job name -> digest of its config, read only, empty for instances saved before digests were kept.
+	 */
+	Map<String, String> getJobHashes() {
+		return this.hashes != null ? new GeneratedJobMap<String>(this.hashes) : Collections.<String, String>emptyMap();
+	}
+
+	// A handful of jobs per instance, a scan costs less than an index would take.
+	private int generatedIndex(final Object jobName) {
+		for (int i = 0; i < this.jobNames.length; i++) {
+			if (this.jobNames[i] != null && this.jobNames[i].equals(jobName)) return i;
+		}
+		return -1;
 	}
 
 	public int compareTo(final TemplateWorkflowInstance o) {
 		return this.instanceName.compareTo(o.instanceName);
 	}
+
+	/**
+	 * Generated job name -> value, by building block index.
+	 */
+	private final class GeneratedJobMap<V> extends ArrayMap<V> {
+		GeneratedJobMap(final V[] values) {
+			super(values);
+		}
+
+		@Override
+		String key(final int i) {
+			return TemplateWorkflowInstance.this.jobNames[i];
+		}
+
+		@Override
+		int indexOf(final Object key) {
+			return generatedIndex(key);
+		}
+	}
+
+	/**
+	 * A read only map over an array of values, the keys are given by index.
+	 */
+	private abstract static class ArrayMap<V> extends AbstractMap<String, V> {
+		private final V[] values;
+
+		ArrayMap(final V[] values) {
+			this.values = values;
+		}
+
+		abstract String key(int i);
+
+		/**
+		 * @return index of the key, negative if it is not in the map.
+		 */
+		abstract int indexOf(Object key);
+
+		@Override
+		public int size() {
+			return this.values.length;
+		}
+
+		@Override
+		public boolean containsKey(final Object key) {
+			return indexOf(key) >= 0;
+		}
+
+		@Override
+		public V get(final Object key) {
+			final int i = indexOf(key);
+			return i >= 0 ? this.values[i] : null;
+		}
+
+		@Override
+		public Set<Map.Entry<String, V>> entrySet() {
+			return new AbstractSet<Map.Entry<String, V>>() {
+				@Override
+				public int size() {
+					return ArrayMap.this.values.length;
+				}
+
+				@Override
+				public Iterator<Map.Entry<String, V>> iterator() {
+					return new Iterator<Map.Entry<String, V>>() {
+						private int next;
+
+						public boolean hasNext() {
+							return this.next < ArrayMap.this.values.length;
+						}
+
+						public Map.Entry<String, V> next() {
+							if (!hasNext()) throw new NoSuchElementException();
+							final int i = this.next++;
+							return new AbstractMap.SimpleImmutableEntry<String, V>(key(i), ArrayMap.this.values[i]);
+						}
+
+						public void remove() {
+							throw new UnsupportedOperationException();
+						}
+					};
+				}
+			};
+		}
+	}
 }
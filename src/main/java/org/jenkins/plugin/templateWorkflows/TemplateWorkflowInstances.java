@@ -4,56 +4,316 @@ import hudson.Extension;
 import hudson.model.JobProperty;
 import hudson.model.JobPropertyDescriptor;
 
+import java.lang.ref.SoftReference;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
 import java.util.Map;
+import java.util.NavigableSet;
 import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ConcurrentSkipListSet;
 
 import net.sf.json.JSONObject;
 
 import org.kohsuke.stapler.DataBoundConstructor;
 import org.kohsuke.stapler.StaplerRequest;
-import org.kohsuke.stapler.export.Exported;
 import org.kohsuke.stapler.export.ExportedBean;
 
-
+/**
+ * The instances of a workflow job, in memory. Each is stored in its own file by {@link InstanceStore};
+ * this is still a {@link JobProperty} so that configs from before that can be read and migrated.
+ *
+ * Only an {@link InstanceSummary} of each instance is always held. The instance itself is read from its file when first asked for
+ * and then only softly referenced, so the garbage collector may drop it again under memory pressure.
+ * Instances with changes not written yet are held until {@link #saved} is called for them.
+ */
 @ExportedBean
 public class TemplateWorkflowInstances extends JobProperty<TemplatesWorkflowJob> {
 
+	// Only as read from old configs, see readResolve.
 	private Map<String, TemplateWorkflowInstance> instances;
 
-	@Exported
+	// Where instances dropped from memory are read back from, null to hold them all.
+	private transient InstanceStore store;
+	private transient ConcurrentSkipListMap<String, Slot> slots;
+
+	// Indices for paging through the instances a few at a time, kept up to date by put and remove.
+	// template key -> names of its instances
+	private transient ConcurrentMap<String, NavigableSet<String>> byTemplate;
+	// parameter name -> value -> names of the instances with that value, built on the first query by parameter as it reads every instance
+	private transient volatile ConcurrentMap<String, ConcurrentMap<String, NavigableSet<String>>> byParameter;
+
+	/**
+	 * An instance's summary and the instance, replaced as a whole when the instance changes.
+	 */
+	private static final class Slot {
+		final InstanceSummary summary;
+		// Held until written.
+		volatile TemplateWorkflowInstance unsaved;
+		volatile SoftReference<TemplateWorkflowInstance> cached;
+
+		Slot(final InstanceSummary summary, final TemplateWorkflowInstance unsaved) {
+			this.summary = summary;
+			this.unsaved = unsaved;
+		}
+	}
+
+	/**
+	 * Not exported, there can be any number of instances: use {@link #query}.
+	 * @return a copy, reading every instance.
+	 */
 	public Map<String, TemplateWorkflowInstance> getInstances() {
-		return instances;
+		Map<String, TemplateWorkflowInstance> ret = new TreeMap<String, TemplateWorkflowInstance>();
+		for (TemplateWorkflowInstance instance : values()) {
+			ret.put(instance.getInstanceName(), instance);
+		}
+		return ret;
 	}
 
 	@DataBoundConstructor
 	public TemplateWorkflowInstances(Map<String, TemplateWorkflowInstance> instances) {
 		this.instances = instances;
+		readResolve();
 	}
 
 	public TemplateWorkflowInstances() {
-		instances = new ConcurrentHashMap<String, TemplateWorkflowInstance>();
+		this(new ConcurrentSkipListMap<String, TemplateWorkflowInstance>());
+	}
+
+	/**
+	 * @param store where instances are read from when needed.
+	 * @param summaries of the instances in the store.
+	 */
+	TemplateWorkflowInstances(InstanceStore store, Collection<InstanceSummary> summaries) {
+		this();
+		this.store = store;
+		for (InstanceSummary summary : summaries) {
+			slots.put(summary.getInstanceName(), new Slot(summary, null));
+			names(byTemplate, TemplateRegistry.key(summary.getTemplateName())).add(summary.getInstanceName());
+		}
+	}
+
+	private Object readResolve() {
+		final Map<String, TemplateWorkflowInstance> loaded = this.instances;
+		this.instances = null;
+		this.slots = new ConcurrentSkipListMap<String, Slot>();
+		this.byTemplate = new ConcurrentHashMap<String, NavigableSet<String>>();
+		if (loaded != null) {
+			for (Map.Entry<String, TemplateWorkflowInstance> e : loaded.entrySet()) {
+				put(e.getKey(), e.getValue());
+			}
+		}
+		return this;
 	}
 
+	/**
+	 * @return the instance, read from its file if it is not in memory, null if there is none or it can not be read.
+	 */
 	public TemplateWorkflowInstance get(String instanceName) {
-		return instances.get(instanceName);
+		return load(slots.get(instanceName));
 	}
 
-	public void put(String instanceName, TemplateWorkflowInstance instance) {
-		instances.put(instanceName, instance);
+	private TemplateWorkflowInstance load(Slot slot) {
+		if (slot == null) return null;
+
+		TemplateWorkflowInstance instance = slot.unsaved;
+		if (instance != null) return instance;
+		SoftReference<TemplateWorkflowInstance> cached = slot.cached;
+		instance = cached != null ? cached.get() : null;
+		if (instance != null || store == null) return instance;
+
+		// Two threads may both read it, either copy will do.
+		instance = store.read(slot.summary.getInstanceName());
+		if (instance != null) slot.cached = new SoftReference<TemplateWorkflowInstance>(instance);
+		return instance;
+	}
+
+	public synchronized void put(String instanceName, TemplateWorkflowInstance instance) {
+		Slot previous = slots.put(instanceName, new Slot(new InstanceSummary(instance), instance));
+		if (previous != null) unindex(instanceName, previous);
+		index(instanceName, instance);
+	}
+
+	public synchronized void remove(String instanceName) {
+		Slot previous = slots.remove(instanceName);
+		if (previous != null) unindex(instanceName, previous);
 	}
 
-	public void remove(String instanceName) {
-		instances.remove(instanceName);
+	/**
+	 * Tells that the instance has been written to the store, from then on it may be dropped from memory.
+	 */
+	void saved(String instanceName, TemplateWorkflowInstance instance) {
+		Slot slot = slots.get(instanceName);
+		if (slot == null || slot.unsaved != instance || store == null) return;
+
+		slot.cached = new SoftReference<TemplateWorkflowInstance>(instance);
+		slot.unsaved = null;
 	}
 
 	public Set<String> keySet() {
-		return instances.keySet();
+		return slots.keySet();
 	}
 
+	/**
+	 * Reads every instance that is not in memory, {@link #summaries()} does not.
+	 * @return all instances, sorted by name.
+	 */
 	public Collection<TemplateWorkflowInstance> values() {
-		return instances.values();
+		List<TemplateWorkflowInstance> ret = new ArrayList<TemplateWorkflowInstance>(slots.size());
+		for (Slot slot : slots.values()) {
+			TemplateWorkflowInstance instance = load(slot);
+			if (instance != null) ret.add(instance);
+		}
+		return ret;
+	}
+
+	/**
+	 * @return the summaries of all instances, sorted by name.
+	 */
+	List<InstanceSummary> summaries() {
+		List<InstanceSummary> ret = new ArrayList<InstanceSummary>(slots.size());
+		for (Slot slot : slots.values()) {
+			ret.add(slot.summary);
+		}
+		return ret;
+	}
+
+	public int size() {
+		return slots.size();
+	}
+
+	/**
+	 * @return names of the instances of the template, sorted.
+	 */
+	Set<String> namesOf(String templateName) {
+		NavigableSet<String> names = byTemplate.get(TemplateRegistry.key(templateName));
+		return names != null ? new TreeSet<String>(names) : Collections.<String>emptySet();
+	}
+
+	private void index(String instanceName, TemplateWorkflowInstance instance) {
+		names(byTemplate, TemplateRegistry.key(instance.getTemplateName())).add(instanceName);
+		if (byParameter != null) indexParameters(byParameter, instanceName, instance);
+	}
+
+	private static void indexParameters(ConcurrentMap<String, ConcurrentMap<String, NavigableSet<String>>> byParameter, String instanceName,
+			TemplateWorkflowInstance instance) {
+		for (Map.Entry<String, String> p : instance.getJobParameters().entrySet()) {
+			if (p.getValue() == null) continue;
+			ConcurrentMap<String, NavigableSet<String>> values = byParameter.get(p.getKey());
+			if (values == null) {
+				values = new ConcurrentHashMap<String, NavigableSet<String>>();
+				byParameter.put(p.getKey(), values);
+			}
+			names(values, p.getValue()).add(instanceName);
+		}
+	}
+
+	private void unindex(String instanceName, Slot slot) {
+		String key = TemplateRegistry.key(slot.summary.getTemplateName());
+		NavigableSet<String> names = byTemplate.get(key);
+		if (names != null) {
+			names.remove(instanceName);
+			if (names.isEmpty()) byTemplate.remove(key);
+		}
+		if (byParameter == null) return;
+
+		// Its file has not been written over yet, if it has to be read back.
+		TemplateWorkflowInstance instance = load(slot);
+		if (instance == null) return;
+		for (Map.Entry<String, String> p : instance.getJobParameters().entrySet()) {
+			ConcurrentMap<String, NavigableSet<String>> values = byParameter.get(p.getKey());
+			names = values != null && p.getValue() != null ? values.get(p.getValue()) : null;
+			if (names == null) continue;
+			names.remove(instanceName);
+			if (names.isEmpty()) values.remove(p.getValue());
+		}
+	}
+
+	/**
+	 * Reads every instance the first time, after that put and remove keep the index up to date.
+	 */
+	private synchronized ConcurrentMap<String, ConcurrentMap<String, NavigableSet<String>>> byParameter() {
+		if (byParameter == null) {
+			ConcurrentMap<String, ConcurrentMap<String, NavigableSet<String>>> index = new ConcurrentHashMap<String, ConcurrentMap<String, NavigableSet<String>>>();
+			for (Map.Entry<String, Slot> e : slots.entrySet()) {
+				TemplateWorkflowInstance instance = load(e.getValue());
+				if (instance != null) indexParameters(index, e.getKey(), instance);
+			}
+			byParameter = index;
+		}
+		return byParameter;
+	}
+
+	private static NavigableSet<String> names(ConcurrentMap<String, NavigableSet<String>> index, String key) {
+		NavigableSet<String> names = index.get(key);
+		if (names == null) {
+			names = new ConcurrentSkipListSet<String>();
+			index.put(key, names);
+		}
+		return names;
+	}
+
+	/**
+	 * One page of the instances matching all the given filters, in name order.
+	 * Walks one index set from the cursor on and checks the other filters by membership in their index sets,
+	 * so a page costs about limit + offset steps and only the instances on the page are read.
+	 * @param templateName null for any.
+	 * @param prefix of the instance name, null for any.
+	 * @param parameters name -> value that must all match, may be empty.
+	 * @param after cursor: only names after this one, null to start at the beginning.
+	 * @param offset matches to skip before the page starts.
+	 * @param limit page size, one more is returned if there are more.
+	 */
+	List<TemplateWorkflowInstance> query(String templateName, String prefix, Map<String, String> parameters, String after, int offset, int limit) {
+		// Names of the instances matching each filter, a parameter value's first as it is usually the smallest.
+		List<NavigableSet<String>> filters = new ArrayList<NavigableSet<String>>(parameters.size() + 1);
+		for (Map.Entry<String, String> p : parameters.entrySet()) {
+			ConcurrentMap<String, NavigableSet<String>> values = byParameter().get(p.getKey());
+			NavigableSet<String> names = values != null ? values.get(p.getValue()) : null;
+			if (names == null) return Collections.emptyList();
+			filters.add(names);
+		}
+		if (templateName != null) {
+			NavigableSet<String> names = byTemplate.get(TemplateRegistry.key(templateName));
+			if (names == null) return Collections.emptyList();
+			filters.add(names);
+		}
+		NavigableSet<String> candidates = filters.isEmpty() ? slots.keySet() : filters.get(0);
+		List<NavigableSet<String>> others = filters.isEmpty() ? filters : filters.subList(1, filters.size());
+
+		String from = after;
+		boolean inclusive = false;
+		if (prefix != null && (from == null || from.compareTo(prefix) < 0)) {
+			from = prefix;
+			inclusive = true;
+		}
+		NavigableSet<String> range = from != null ? candidates.tailSet(from, inclusive) : candidates;
+
+		List<TemplateWorkflowInstance> page = new ArrayList<TemplateWorkflowInstance>(Math.min(limit + 1, 1024));
+		int skipped = 0;
+		candidates:
+		for (String name : range) {
+			if (prefix != null && !name.startsWith(prefix)) break;
+
+			for (NavigableSet<String> names : others) {
+				if (!names.contains(name)) continue candidates;
+			}
+			if (skipped < offset) {
+				skipped++;
+				continue;
+			}
+			TemplateWorkflowInstance instance = get(name);
+			if (instance == null) continue;
+			page.add(instance);
+			if (page.size() > limit) break;
+		}
+		return page;
 	}
 
 	@Extension
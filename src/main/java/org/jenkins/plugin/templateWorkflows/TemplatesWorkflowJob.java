@@ -9,66 +9,138 @@ import hudson.model.ViewJob;
 import hudson.model.AbstractProject;
 import hudson.model.AbstractProject.AbstractProjectDescriptor;
 import hudson.model.Descriptor.FormException;
-import hudson.model.Hudson;
 import hudson.model.Job;
+import hudson.model.Queue;
+import hudson.model.RunMap;
 
-import java.io.ByteArrayInputStream;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.Enumeration;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 import java.util.Set;
-import java.util.concurrent.TimeUnit;
+import java.util.TreeSet;
 import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReentrantLock;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletResponse;
 import javax.xml.transform.stream.StreamSource;
 
 import jenkins.model.Jenkins;
+import net.sf.json.JSONArray;
 import net.sf.json.JSONObject;
 
-import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
 import org.apache.commons.lang.StringUtils;
+import org.apache.commons.lang.math.NumberUtils;
 import org.kohsuke.stapler.StaplerRequest;
 import org.kohsuke.stapler.StaplerResponse;
 import org.kohsuke.stapler.bind.JavaScriptMethod;
+import org.kohsuke.stapler.export.Exported;
+import org.kohsuke.stapler.interceptor.RequirePOST;
 
 public class TemplatesWorkflowJob extends ViewJob<TemplatesWorkflowJob, TemplateswWorkflowRun> implements TopLevelItem {
 
+	private static final Logger LOGGER = Logger.getLogger(TemplatesWorkflowJob.class.getName());
+
+	/**
+	 * Created lazily, XStream does not run field initialisers when the job is loaded from disk.
+	 */
+	private transient volatile WorkflowLocks locks;
+	private transient volatile TemplateswWorkflowRun updateRun;
 	/**
-	 * I would love for this to not be a static.
-	 * But what ever powers @JavaScriptMethod does somehow bypasses object instantiation to call object methods.
-	 * Grumble grumble.
+	 * Instances changed since the last write, guarded by this job.
 	 */
-	private static final Lock LOCK = new ReentrantLock(true);
+	private transient Set<String> dirtyInstances;
 
-	private String templateName;
-	private String templateInstanceName;
+	/**
+	 * Last template and instance picked for the configure page, written under this job's lock.
+	 * The page passes the instance back to {@link #refresh(String, String)}, so users editing different instances do not see each other's.
+	 */
+	private volatile String templateName;
+	private volatile String templateInstanceName;
+	/**
+	 * Full name of the folder whose subtree building blocks are taken from, empty for all of Jenkins, null for the folder this job is in.
+	 */
+	private volatile String templateScope;
+	/**
+	 * Where instances used to be kept, only read to move old configs over to the {@link InstanceStore}.
+	 */
 	private TemplateWorkflowInstances templateInstances;
+	/**
+	 * Loaded from the {@link InstanceStore}, null until the first instance when there are none.
+	 */
+	private transient volatile TemplateWorkflowInstances instances;
 
 	public TemplatesWorkflowJob(final ItemGroup itemGroup, final String name) {
 		super(itemGroup, name);
 	}
 
-	private void tryLock() {
+	private WorkflowLocks locks() {
+		WorkflowLocks l = this.locks;
+		if (l == null) {
+			synchronized (this) {
+				l = this.locks;
+				if (l == null) {
+					l = new WorkflowLocks();
+					this.locks = l;
+				}
+			}
+		}
+		return l;
+	}
+
+	/**
+	 * Only operations on the same instance of this workflow job exclude each other.
+	 * @return the held lock, to be released by the caller.
+	 */
+	Lock tryLock(final String instanceName) {
+		final WorkflowMetrics.Timer wait = timer(WorkflowMetrics.ANY_TEMPLATE, WorkflowMetrics.LOCK_WAIT);
+		final long start = System.nanoTime();
+		final Lock lock;
 		try {
-			if (LOCK.tryLock(5, TimeUnit.SECONDS)) return;
+			lock = locks().lockInstance(instanceName);
 		}
-		catch (final InterruptedException e) {/* do not care. */}
-		throw new IllegalStateException("Could not aquire lock within 5 seconds.  Another operation is in progress.");
+		catch (final IllegalStateException e) {
+			wait.recordFailure(start);
+			throw e;
+		}
+		wait.record(start);
+		return WorkflowMetrics.timed(lock, timer(WorkflowMetrics.ANY_TEMPLATE, WorkflowMetrics.LOCK_HOLD));
 	}
 
-	private void unlock() {
-		LOCK.unlock();
+	/**
+	 * @param template tags the timer only if it is a known template, names that come from requests are not trusted to be.
+	 */
+	WorkflowMetrics.Timer timer(final String template, final String phase) {
+		final String known = WorkflowMetrics.ANY_TEMPLATE.equals(template) ? null : TemplateRegistry.get().getTemplateName(template);
+		return WorkflowMetrics.get().timer(this.getFullName(), known != null ? known : WorkflowMetrics.ANY_TEMPLATE, phase);
+	}
+
+	/**
+	 * Timers of this workflow job, also available as plain text from <code>metrics</code> below the job's URL.
+	 */
+	@Exported(name = "metrics")
+	public List<WorkflowMetrics.Timer> getMetrics() {
+		return WorkflowMetrics.get().getTimers(this.getFullName());
+	}
+
+	public void doMetrics(final StaplerRequest req, final StaplerResponse rsp) throws IOException {
+		rsp.setContentType("text/plain; version=0.0.4; charset=UTF-8");
+		rsp.getWriter().write(WorkflowMetrics.get().toText(this.getFullName()));
 	}
 
 	public String getTemplateName() {
@@ -79,45 +151,110 @@ public class TemplatesWorkflowJob extends ViewJob<TemplatesWorkflowJob, Template
 		return this.templateInstanceName;
 	}
 
+	/**
+	 * Reads every instance not in memory, the job page uses {@link #getInstanceSummaries()}.
+	 */
 	public Collection<TemplateWorkflowInstance> getTemplateInstances() {
-		if (this.templateInstances == null) {
+		if (this.instances == null) {
 			return new ArrayList<TemplateWorkflowInstance>();
 		}
 
-		ArrayList<TemplateWorkflowInstance> all = new ArrayList<TemplateWorkflowInstance>(this.templateInstances.values());
+		ArrayList<TemplateWorkflowInstance> all = new ArrayList<TemplateWorkflowInstance>(this.instances.values());
 		Collections.sort(all);
 		return all;
 	}
 
+	/**
+	 * @return the instances of the template, reading only those.
+	 */
+	List<TemplateWorkflowInstance> getTemplateInstances(final String templateName) {
+		final TemplateWorkflowInstances instances = this.instances;
+		final List<TemplateWorkflowInstance> ret = new ArrayList<TemplateWorkflowInstance>();
+		if (instances == null) {
+			return ret;
+		}
+
+		for (final String instanceName : instances.namesOf(templateName)) {
+			final TemplateWorkflowInstance instance = instances.get(instanceName);
+			if (instance != null) ret.add(instance);
+		}
+		return ret;
+	}
+
+	/**
+	 * Exported as <code>instances</code>, in place of the instance map the job property used to export:
+	 * summaries only, as there can be any number of instances. Parameters and jobs are paged through with {@link #doInstances}.
+	 */
+	@Exported(name = "instances")
+	public List<InstanceSummary> getInstanceSummaries() {
+		final TemplateWorkflowInstances instances = this.instances;
+		return instances != null ? instances.summaries() : Collections.<InstanceSummary>emptyList();
+	}
+
 	public String getProjectDesc() {
-		if (this.templateInstances == null || this.templateInstances.getInstances() == null || this.templateInstances.getInstances().size() == 0) {
+		final TemplateWorkflowInstances instances = this.instances;
+		if (instances == null || instances.size() == 0) {
 			return "This Project does not have any Associated Workflows";
 		}
 
-		return "This Project has " + this.templateInstances.getInstances().size() + " Associated Workflows";
+		return "This Project has " + instances.size() + " Associated Workflows";
 	}
 
 	public Set<String> getTemplateNames() {
-		Set<String> ret = new LinkedHashSet<String>();
-
-		List<Item> allItems = Jenkins.getInstance().getAllItems();
-		for (Item i : allItems) {
-			Collection<? extends Job> allJobs = i.getAllJobs();
-			for (Job j : allJobs) {
-				TemplateWorkflowProperty t = (TemplateWorkflowProperty) j.getProperty(TemplateWorkflowProperty.class);
-				if (t != null && t.getTemplateName() != null) {
-					for (String tName : t.getTemplateName().split(",")) {
-						ret.add(tName.trim());
-					}
-				}
-			}
+		TemplateItemListener.ensureLoaded();
+		return TemplateRegistry.get().getTemplateNames(getScope());
+	}
+
+	/**
+	 * @return the configured scope as the page shows it: empty for the folder this job is in, "/" for all of Jenkins.
+	 */
+	public String getTemplateScope() {
+		final String scope = this.templateScope;
+		return scope == null ? "" : scope.length() == 0 ? "/" : scope;
+	}
+
+	/**
+	 * @return full name of the folder templates are resolved in, empty for all of Jenkins.
+	 */
+	String getScope() {
+		final String scope = this.templateScope;
+		if (scope != null) {
+			return scope;
 		}
-		return ret;
+		final String parent = getParent().getFullName();
+		return parent == null ? "" : parent;
 	}
 
-	@Override
-	public Hudson getParent() {
-		return Hudson.getInstance();
+	boolean isInScope(final String jobFullName) {
+		final String scope = getScope();
+		return scope.length() == 0 || jobFullName.startsWith(scope + "/");
+	}
+
+	/**
+	 * @param scope full name of a folder, "/" for all of Jenkins, or empty for the folder this job is in.
+	 */
+	@JavaScriptMethod
+	public JSONObject setTemplateScope(final String scope) throws IOException {
+		this.checkPermission(CONFIGURE);
+
+		String newScope = StringUtils.trimToNull(scope);
+		if (newScope != null) {
+			newScope = StringUtils.strip(newScope, "/");
+			if (newScope.length() > 0 && !(Jenkins.getInstance().getItemByFullName(newScope) instanceof ItemGroup)) {
+				JSONObject ret = new JSONObject();
+				ret.put("result", false);
+				ret.put("msg", "No folder named '" + newScope + "'");
+				return ret;
+			}
+		}
+
+		this.templateScope = newScope;
+		this.save();
+
+		JSONObject ret = new JSONObject();
+		ret.put("result", true);
+		ret.put("msg", "");
+		return ret;
 	}
 
 	private static String safeReadParam(final StaplerRequest req, final String paramName) throws FormException {
@@ -128,12 +265,18 @@ public class TemplatesWorkflowJob extends ViewJob<TemplatesWorkflowJob, Template
 
 	@Override
 	public void submit(final StaplerRequest req, final StaplerResponse rsp) throws IOException, ServletException, FormException {
-		tryLock();
+		final long start = System.nanoTime();
 		try {
-			submitWithLock(req, rsp);
+			final Lock lock = tryLock(safeReadParam(req, "template.templateInstanceName"));
+			try {
+				submitWithLock(req, rsp);
+			}
+			finally {
+				lock.unlock();
+			}
 		}
 		finally {
-			unlock();
+			timer(StringUtils.defaultString(req.getParameter("template.templateName")), WorkflowMetrics.SUBMIT).record(start);
 		}
 	}
 
@@ -144,22 +287,25 @@ public class TemplatesWorkflowJob extends ViewJob<TemplatesWorkflowJob, Template
 
 		final List<Job> relatedJobs;
 		final Map<String, String> jobParameters;
-		final TemplateWorkflowInstance templateInstance = this.templateInstances != null ? this.templateInstances.get(newTemplateInstanceName) : null;
+		final TemplateWorkflowInstance templateInstance = this.instances != null ? this.instances.get(newTemplateInstanceName) : null;
 		if (templateInstance == null) { // New.
-			relatedJobs = getRelatedJobs(newTemplateName);
-			jobParameters = getTemplateParamaters(relatedJobs);
+			relatedJobs = lookupRelatedJobs(newTemplateName);
+			jobParameters = getTemplateParamaters(newTemplateName, relatedJobs);
 		}
 		else { // Update.
-			relatedJobs = getRelatedJobs(templateInstance.getTemplateName());
-			jobParameters = getTemplateParamaters(relatedJobs);
+			relatedJobs = lookupRelatedJobs(templateInstance.getTemplateName());
+			jobParameters = getTemplateParamaters(templateInstance.getTemplateName(), relatedJobs);
 			for (final String p : jobParameters.keySet()) {
 				jobParameters.put(p, templateInstance.getJobParameters().get(p));
 			}
 		}
 
 		final Map<String, String> replacementsParams = new HashMap<String, String>();
+		final Set<String> computedParams = new HashSet<String>();
 		for (final String p : jobParameters.keySet()) {
 			replacementsParams.put(p, safeReadParam(req, "template." + p));
+			// An unticked box is not sent at all.
+			if (req.getParameter("template.computed." + p) != null) computedParams.add(p);
 		}
 
 		final Map<String, String> replacementsJobs = new HashMap<String, String>();
@@ -168,53 +314,114 @@ public class TemplatesWorkflowJob extends ViewJob<TemplatesWorkflowJob, Template
 		}
 
 		// Now we have done lots of input validation, probably ok to commit to these.
-		this.templateName = newTemplateName;
-		this.templateInstanceName = newTemplateInstanceName;
+		this.setFormState(newTemplateName, newTemplateInstanceName);
 
-		this.createOrUpdate(operation, replacementsParams, relatedJobs, replacementsJobs);
+		this.createOrUpdate(operation, newTemplateName, newTemplateInstanceName, replacementsParams, computedParams, relatedJobs, replacementsJobs);
+		// A new instance is written right away, or a crash would leave the jobs just created untracked.
+		// Edits of an existing one are coalesced, at worst one is lost and the next update renders the previous values again.
+		if (operation.equals("create")) {
+			this.flushInstances();
+		}
+		else {
+			WriteBehindSaver.schedule(this);
+		}
 		super.submit(req, rsp);
 	}
 
-	private void createOrUpdate(final String operation, final Map<String, String> replacementsParams, final List<Job> relatedJobs, final Map<String, String> replacementsJobs) throws IOException, FormException {
+	private void createOrUpdate(final String operation, final String templateName, final String instanceName, final Map<String, String> replacementsParams,
+			final Set<String> computedParams, final List<Job> relatedJobs, final Map<String, String> replacementsJobs) throws IOException, FormException {
+		final TemplateWorkflowInstances templateInstances = this.instances;
+		final TemplateWorkflowInstance previous = templateInstances != null ? templateInstances.get(instanceName) : null;
+
+		final Map<String, RenderedConfig> renderedJobs = render(templateName, instanceName, replacementsParams, computedParams, relatedJobs, replacementsJobs);
+		final Map<String, String> jobHashes = hash(renderedJobs);
+		final Map<String, Boolean> isNewJobMap = apply(templateName, renderedJobs, jobHashes, previous != null ? previous.getJobHashes() : null, operation.equals("create"));
+		this.addTemplateInfo(templateName, instanceName, replacementsParams, computedParams, replacementsJobs, isNewJobMap, jobHashes);
+	}
+
+	/**
+	 * Prepares the config of every job of an instance, nothing is written.
+	 * The configs are rendered only as they are read, straight into the stream Jenkins parses.
+	 * Computed parameters are evaluated once here for all the jobs, see {@link ComputedParameters}.
+	 * @param computedParams names of the parameters whose values are expressions.
+	 * @return generated job name -> config xml, in the order of relatedJobs.
+	 */
+	Map<String, RenderedConfig> render(final String templateName, final String instanceName, final Map<String, String> replacementsParams, final Set<String> computedParams,
+			final List<Job> relatedJobs, final Map<String, String> replacementsJobs) throws IOException, FormException {
+		final long start = System.nanoTime();
 		for (final Job job : relatedJobs) {
 			if (StringUtils.isBlank(replacementsJobs.get(job.getName()))) throw new FormException("Expected to find '" + job.getName() + "' in '" + replacementsJobs + "'.", "");
 		}
 
-		boolean isNew = false;
-		if (operation.equals("create")) {
-			isNew = true;
+		final Map<String, String> resolvedParams;
+		try {
+			resolvedParams = ComputedParameters.resolve(instanceName, replacementsParams, computedParams);
 		}
-		Map<String, Boolean> isNewJobMap = new HashMap<String, Boolean>();
+		catch (final IllegalArgumentException e) {
+			throw new FormException(e.getMessage(), "");
+		}
+
+		Map<String, RenderedConfig> renderedJobs = new LinkedHashMap<String, RenderedConfig>();
+		List<String> templateJobNames = getJobNames(relatedJobs);
 		for (Job job : relatedJobs) {
-			String jobXml = FileUtils.readFileToString(job.getConfigFile().getFile());
+			renderedJobs.put(replacementsJobs.get(job.getName()), new RenderedConfig(getCompiledTemplate(templateName, job, templateJobNames), resolvedParams, replacementsJobs));
+		}
+		timer(templateName, WorkflowMetrics.RENDER).record(start);
+		return renderedJobs;
+	}
 
-			for (String origJob : replacementsJobs.keySet()) {
-				jobXml = jobXml.replaceAll(">\\s*" + origJob + "\\s*</", ">" + replacementsJobs.get(origJob) + "</");
-				jobXml = jobXml.replaceAll(",\\s*" + origJob, "," + replacementsJobs.get(origJob));
-				jobXml = jobXml.replaceAll(origJob + "\\s*,", replacementsJobs.get(origJob) + ",");
-			}
+	/**
+	 * @return generated job name -> digest of its rendered config.
+	 */
+	static Map<String, String> hash(final Map<String, RenderedConfig> renderedJobs) throws IOException {
+		Map<String, String> jobHashes = new HashMap<String, String>();
+		for (Map.Entry<String, RenderedConfig> renderedJob : renderedJobs.entrySet()) {
+			jobHashes.put(renderedJob.getKey(), renderedJob.getValue().digest());
+		}
+		return jobHashes;
+	}
+
+	/**
+	 * @return true if the job exists and was last written from exactly this rendered config.
+	 */
+	static boolean isUnchanged(final String jobName, final Map<String, String> jobHashes, final Map<String, String> previousHashes) {
+		if (previousHashes == null) return false;
+		String previousHash = previousHashes.get(jobName);
+		return previousHash != null && previousHash.equals(jobHashes.get(jobName)) && Jenkins.getInstance().getItem(jobName) != null;
+	}
 
-			for (String key : replacementsParams.keySet()) {
-				String replacement = replacementsParams.get(key).replace("&", "&amp;");
-				jobXml = jobXml.replaceAll("@@" + key + "@@", replacement);
+	/**
+	 * Creates or updates the generated jobs.
+	 * On update, jobs whose rendered config has the same digest as the last one written are left alone.
+	 * @param jobHashes digests of the rendered configs. Those of existing jobs a new instance adopts are removed, as nothing was written to them:
+	 *        only digests of configs actually written may be stored, or the first update would take the adopted jobs for unchanged.
+	 * @param previousHashes digests stored with the instance by its last update, may be null.
+	 * @return generated job name -> whether it was created by this call.
+	 */
+	Map<String, Boolean> apply(final String templateName, final Map<String, RenderedConfig> renderedJobs, final Map<String, String> jobHashes, final Map<String, String> previousHashes,
+			final boolean isNew) throws IOException, FormException {
+		Map<String, Boolean> isNewJobMap = new HashMap<String, Boolean>();
+		for (Map.Entry<String, RenderedConfig> renderedJob : renderedJobs.entrySet()) {
+			if (!isNew && isUnchanged(renderedJob.getKey(), jobHashes, previousHashes)) {
+				isNewJobMap.put(renderedJob.getKey(), null);
+				continue;
 			}
 
-			Boolean wasCreated = this.createOrUpdateJob(replacementsJobs.get(job.getName()), jobXml, isNew);
-			isNewJobMap.put(replacementsJobs.get(job.getName()), wasCreated);
+			final long start = System.nanoTime();
+			Boolean wasCreated = this.createOrUpdateJob(renderedJob.getKey(), renderedJob.getValue(), isNew);
+			timer(templateName, isNew ? WorkflowMetrics.CREATE_JOB : WorkflowMetrics.UPDATE_JOB).record(start);
+			isNewJobMap.put(renderedJob.getKey(), wasCreated);
+			if (isNew && !wasCreated) jobHashes.remove(renderedJob.getKey());
 		}
-
-		this.addTemplateInfo(this.templateInstanceName, replacementsParams, replacementsJobs, isNewJobMap);
+		return isNewJobMap;
 	}
 
-	private Boolean createOrUpdateJob(final String jobReplacedName, final String jobXml, final boolean isNew) throws IOException, FormException {
+	private Boolean createOrUpdateJob(final String jobReplacedName, final RenderedConfig jobXml, final boolean isNew) throws IOException, FormException {
 		if (StringUtils.isBlank(jobReplacedName)) throw new FormException("Must not be blank: jobReplacedName", "");
-		if (StringUtils.isBlank(jobXml)) throw new FormException("Must not be blank: jobXml", "");
-
-		InputStream is = null;
+		if (jobXml.isEmpty()) throw new FormException("Must not be blank: jobXml", "");
 
+		final InputStream is = jobXml.openStream();
 		try {
-			is = new ByteArrayInputStream(jobXml.getBytes("UTF-8"));
-
 			final Job replacedJob;
 
 			if (isNew) {
@@ -225,8 +432,13 @@ public class TemplatesWorkflowJob extends ViewJob<TemplatesWorkflowJob, Template
 					return false;
 				}
 
-				replacedJob = (Job) Jenkins.getInstance().createProjectFromXML(jobReplacedName, is);
-				replacedJob.removeProperty(TemplateWorkflowProperty.class);
+				TemplateItemListener.generating(jobReplacedName);
+				try {
+					replacedJob = (Job) Jenkins.getInstance().createProjectFromXML(jobReplacedName, is);
+					replacedJob.removeProperty(TemplateWorkflowProperty.class);
+				} finally {
+					TemplateItemListener.generated(jobReplacedName);
+				}
 				if (replacedJob instanceof AbstractProject) ((AbstractProject) replacedJob).makeDisabled(false);
 				replacedJob.save();
 				return true;
@@ -236,20 +448,20 @@ public class TemplatesWorkflowJob extends ViewJob<TemplatesWorkflowJob, Template
 				if (replacedJob == null) throw new FormException("Job not found: " + jobReplacedName, "");
 
 				final Boolean wasDisabled = replacedJob instanceof AbstractProject ? ((AbstractProject) replacedJob).isDisabled() : null;
-				replacedJob.updateByXml(new StreamSource(is));
-				replacedJob.removeProperty(TemplateWorkflowProperty.class);
+				TemplateItemListener.generating(replacedJob.getFullName());
+				try {
+					replacedJob.updateByXml(new StreamSource(is));
+					replacedJob.removeProperty(TemplateWorkflowProperty.class);
+				} finally {
+					TemplateItemListener.generated(replacedJob.getFullName());
+				}
 				if (wasDisabled != null) ((AbstractProject) replacedJob).makeDisabled(wasDisabled);
 				replacedJob.save();
 				return null;
 			}
 
 		} finally {
-			try {
-				is.close();
-			} catch (Exception e) {
-				e.printStackTrace();
-				return null;
-			}
+			IOUtils.closeQuietly(is);
 		}
 	}
 
@@ -271,174 +483,391 @@ public class TemplatesWorkflowJob extends ViewJob<TemplatesWorkflowJob, Template
 
 		@Override
 		public TopLevelItem newInstance(final ItemGroup paramItemGroup, final String paramString) {
-			return new TemplatesWorkflowJob(Hudson.getInstance(), paramString);
+			return new TemplatesWorkflowJob(paramItemGroup, paramString);
 		}
 	}
 	
+	/**
+	 * Starts updating all instances as a run of this job, or returns the one already in progress.
+	 * @param validateFirst to render and check every instance before writing any, and write none if one has problems.
+	 */
 	@JavaScriptMethod
-	public JSONObject updateAll() throws FormException {
-		tryLock();
-		try {
-			return updateAllWithLock();
-		}
-		finally {
-			unlock();
-		}
-	}
+	public JSONObject updateAll(final boolean validateFirst) throws IOException {
+		this.checkPermission(CONFIGURE);
+
+		TemplateswWorkflowRun run = startUpdateAll(validateFirst);
 
-	private JSONObject updateAllWithLock() throws FormException {
-		StringBuilder sb = new StringBuilder();
 		JSONObject ret = new JSONObject();
+		ret.put("result", true);
+		ret.put("run", run.getNumber());
+		ret.put("url", run.getUrl());
+		return ret;
+	}
 
-		Collection<TemplateWorkflowInstance> instances = this.getTemplateInstances();
+	private synchronized TemplateswWorkflowRun startUpdateAll(final boolean validateFirst) throws IOException {
+		TemplateswWorkflowRun current = this.updateRun;
+		if (current != null && current.isBuilding()) {
+			return current;
+		}
 
-		List<String> updated = new ArrayList<String>();
-		List<String> notUpdated = new ArrayList<String>();
+		return startUpdate(this.getTemplateInstances(), "Updating all workflows", validateFirst);
+	}
 
-		for (TemplateWorkflowInstance instance : instances) {
-			String iname = instance.getInstanceName();
-			this.setTemplateInstanceName(iname);
-			try {
-				final List<Job> relatedJobs = getRelatedJobs(instance.getTemplateName());
-				this.createOrUpdate("update", instance.getJobParameters(), relatedJobs, instance.getRelatedJobs());
-				updated.add(iname);
-			} catch (Exception e) {
-				notUpdated.add(iname + " (" + e.toString() + ")");
-			}
+	/**
+	 * Starts updating the given instances as a run of this job.
+	 * @param reason first line of the run's log.
+	 * @param validateFirst see {@link TemplateswWorkflowRun#updateAll}.
+	 * @return the new run, or null if an update is already running.
+	 */
+	synchronized TemplateswWorkflowRun startUpdate(final Collection<TemplateWorkflowInstance> instances, final String reason, final boolean validateFirst)
+			throws IOException {
+		TemplateswWorkflowRun current = this.updateRun;
+		if (current != null && current.isBuilding()) {
+			return null;
 		}
 
-		if (!notUpdated.isEmpty()) {
-			sb.append(notUpdated.size() + " workflows have not been updated: <ul>");
-			for (String s : notUpdated) {
-				sb.append("<li>" + s + "</li>");
+		final TemplateswWorkflowRun run = newRun();
+		this.updateRun = run;
+		InstanceUpdater.background().submit(new Runnable() {
+			public void run() {
+				run.updateAll(instances, reason, validateFirst);
 			}
-			sb.append("</ul>");
+		});
+		return run;
+	}
+
+	private synchronized TemplateswWorkflowRun newRun() throws IOException {
+		_getRuns();
+		TemplateswWorkflowRun run = new TemplateswWorkflowRun(this);
+		this.runs.put(run);
+		return run;
+	}
+
+	/**
+	 * Creates many instances of one template from a JSON or CSV matrix posted to <code>createInstances</code> below the job's URL,
+	 * see {@link BulkInstanceCreator} for the formats. Generated job names may only be those of existing jobs with <code>allowExisting=true</code>.
+	 * The matrix is checked right away, 400 with the errors if anything is wrong, then the instances are created by a run of this job:
+	 * answers with that run, or 409 if an update, creation or delete is already running.
+	 */
+	@RequirePOST
+	public void doCreateInstances(final StaplerRequest req, final StaplerResponse rsp) throws IOException {
+		this.checkPermission(CONFIGURE);
+
+		final List<String> errors = new ArrayList<String>();
+		final BulkInstanceCreator creator = BulkInstanceCreator.prepare(this, req.getContentType(), req.getParameter("template"), IOUtils.toString(req.getReader()),
+				Boolean.parseBoolean(req.getParameter("allowExisting")), errors);
+		final JSONObject ret;
+		if (creator == null) {
+			ret = BulkInstanceCreator.failure(errors);
+			rsp.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+		}
+		else {
+			ret = startCreate(creator);
+			rsp.setStatus(ret.optBoolean("result") ? HttpServletResponse.SC_OK : HttpServletResponse.SC_CONFLICT);
 		}
+		rsp.setContentType("application/json;charset=UTF-8");
+		rsp.getWriter().write(ret.toString());
+	}
 
-		if (!updated.isEmpty()) {
-			sb.append(updated.size() + " workflows have been updated: <ul>");
-			for (String s : updated) {
-				sb.append("<li>" + s + "</li>");
-			}
-			sb.append("</ul>");
+	private synchronized JSONObject startCreate(final BulkInstanceCreator creator) throws IOException {
+		JSONObject ret = new JSONObject();
+		TemplateswWorkflowRun current = this.updateRun;
+		if (current != null && current.isBuilding()) {
+			ret.put("result", false);
+			ret.put("msg", "An update, creation or delete of workflows is already running");
+			ret.put("run", current.getNumber());
+			ret.put("url", current.getUrl());
+			return ret;
 		}
 
+		final TemplateswWorkflowRun run = newRun();
+		this.updateRun = run;
+		InstanceUpdater.background().submit(new Runnable() {
+			public void run() {
+				run.createAll(creator, "Creating workflows posted to createInstances");
+			}
+		});
+
 		ret.put("result", true);
-		ret.put("msg", sb.toString());
+		ret.put("run", run.getNumber());
+		ret.put("url", run.getUrl());
 		return ret;
 	}
 
+	static final int DEFAULT_PAGE_SIZE = 50;
+	static final int MAX_PAGE_SIZE = 500;
+
+	/**
+	 * One page of this job's instances as JSON, at <code>instances</code> below the job's URL. All parameters are optional:
+	 * <ul>
+	 * <li>template, prefix (of the instance name) and param.&lt;name&gt;=&lt;value&gt; filter,</li>
+	 * <li>after (the "next" of the previous page) or offset pick where the page starts, limit its size (50, at most 500),</li>
+	 * <li>fields is a comma separated subset of instanceName, templateName, relatedJobsSize, jobParameters and relatedJobs
+	 * (the first three if not given).</li>
+	 * </ul>
+	 */
+	public void doInstances(final StaplerRequest req, final StaplerResponse rsp) throws IOException {
+		final Map<String, String> parameters = new HashMap<String, String>();
+		for (final Enumeration<?> e = req.getParameterNames(); e.hasMoreElements();) {
+			final String name = (String) e.nextElement();
+			if (name.startsWith("param.")) parameters.put(name.substring("param.".length()), req.getParameter(name));
+		}
+		final int offset = Math.max(0, NumberUtils.toInt(req.getParameter("offset"), 0));
+		final int limit = Math.min(MAX_PAGE_SIZE, Math.max(1, NumberUtils.toInt(req.getParameter("limit"), DEFAULT_PAGE_SIZE)));
+		final String fieldList = req.getParameter("fields");
+		final Set<String> fields = new HashSet<String>(Arrays.asList(StringUtils.split(
+				StringUtils.isBlank(fieldList) ? "instanceName,templateName,relatedJobsSize" : fieldList, ", ")));
+
+		final TemplateWorkflowInstances instances = this.instances;
+		final List<TemplateWorkflowInstance> page = instances == null ? Collections.<TemplateWorkflowInstance>emptyList()
+				: instances.query(StringUtils.trimToNull(req.getParameter("template")), StringUtils.trimToNull(req.getParameter("prefix")), parameters,
+						StringUtils.trimToNull(req.getParameter("after")), offset, limit);
+
+		final JSONArray items = new JSONArray();
+		for (int i = 0; i < Math.min(limit, page.size()); i++) {
+			items.add(project(page.get(i), fields));
+		}
+
+		final JSONObject ret = new JSONObject();
+		ret.put("instances", items);
+		// Cursor for the next page, null on the last one.
+		ret.put("next", page.size() > limit ? page.get(limit - 1).getInstanceName() : null);
+		rsp.setContentType("application/json;charset=UTF-8");
+		rsp.getWriter().write(ret.toString());
+	}
+
+	private static JSONObject project(final TemplateWorkflowInstance instance, final Set<String> fields) {
+		final JSONObject o = new JSONObject();
+		if (fields.contains("instanceName")) o.put("instanceName", instance.getInstanceName());
+		if (fields.contains("templateName")) o.put("templateName", instance.getTemplateName());
+		if (fields.contains("relatedJobsSize")) o.put("relatedJobsSize", instance.getRelatedJobsSize());
+		if (fields.contains("jobParameters")) o.put("jobParameters", JSONObject.fromObject(instance.getJobParameters()));
+		if (fields.contains("relatedJobs")) o.put("relatedJobs", JSONObject.fromObject(instance.getRelatedJobs()));
+		return o;
+	}
+
+	boolean hasInstance(final String instanceName) {
+		final TemplateWorkflowInstances instances = this.instances;
+		return instances != null && instances.get(instanceName) != null;
+	}
+
+	@JavaScriptMethod
+	public JSONObject getUpdateProgress() {
+		TemplateswWorkflowRun run = this.updateRun;
+		UpdateProgress progress = run != null ? run.getProgress() : null;
+
+		JSONObject ret = progress != null ? progress.toJSON() : new JSONObject();
+		if (progress == null) {
+			ret.put("running", run != null && run.isBuilding());
+		}
+		if (run != null) {
+			ret.put("run", run.getNumber());
+			ret.put("url", run.getUrl());
+		}
+		return ret;
+	}
+
+	private synchronized void setFormState(final String templateName, final String instanceName) {
+		if (templateName != null) this.templateName = templateName;
+		this.templateInstanceName = instanceName;
+	}
+
 	@JavaScriptMethod
 	public JSONObject setTemplateInstanceName(final String instanceName) {
-		tryLock();
+		this.setFormState(null, instanceName);
+		final JSONObject ret = new JSONObject();
+		ret.put("result", true);
+		return ret;
+	}
+
+	private String templateOf(final String instanceName) {
+		final TemplateWorkflowInstances instances = this.instances;
+		final TemplateWorkflowInstance instance = instances != null ? instances.get(instanceName) : null;
+		return instance != null ? instance.getTemplateName() : WorkflowMetrics.ANY_TEMPLATE;
+	}
+
+	@JavaScriptMethod
+	public JSONObject executeWorkflow(final String workflowName) {
+		final long start = System.nanoTime();
 		try {
-			this.templateInstanceName = instanceName;
-			final JSONObject ret = new JSONObject();
-			ret.put("result", true);
+			final JSONObject ret = executeWorkflows(Collections.singletonList(workflowName));
+			final JSONObject failed = ret.getJSONObject("failed");
+			if (failed.has(workflowName)) {
+				ret.put("msg", failed.getString(workflowName));
+			}
 			return ret;
 		}
 		finally {
-			unlock();
+			timer(templateOf(workflowName), WorkflowMetrics.EXECUTE_WORKFLOW).record(start);
 		}
 	}
 
 	@JavaScriptMethod
-	public JSONObject executeWorkflow(final String workflowName) throws IOException, InterruptedException {
-		tryLock();
+	public JSONObject executeAll() {
+		this.checkPermission(BUILD);
+
+		final long start = System.nanoTime();
 		try {
-			return executeWorkflowWithLock(workflowName);
+			return executeWorkflows(getInstanceNames(null));
 		}
 		finally {
-			unlock();
+			timer(WorkflowMetrics.ANY_TEMPLATE, WorkflowMetrics.EXECUTE_WORKFLOW).record(start);
 		}
 	}
 
-	private JSONObject executeWorkflowWithLock(final String workflowName) throws IOException, InterruptedException {
-		boolean result = false;
-		String msg = "Starting Job/s not Defined for Workflow '" + workflowName + "'!";
-		String jobs = "";
-
+	/**
+	 * Runs many workflows at once, posted to <code>execute</code> below the job's URL: those named by the <code>instance</code>
+	 * parameters, else all instances of <code>template</code>, else all of them. Answers with what {@link #executeWorkflows} returns.
+	 */
+	@RequirePOST
+	public void doExecute(final StaplerRequest req, final StaplerResponse rsp) throws IOException {
+		this.checkPermission(BUILD);
+
+		final long start = System.nanoTime();
+		final String[] names = req.getParameterValues("instance");
+		final String template = StringUtils.isBlank(req.getParameter("template")) ? null : req.getParameter("template");
+		final JSONObject ret;
 		try {
-			TemplateWorkflowInstance templateInstance = this.templateInstances.get(workflowName);
-			for (String jobTenplateName : templateInstance.getRelatedJobs().keySet()) {
-
-				Job job = (Job) Jenkins.getInstance().getItem(jobTenplateName);
-				TemplateWorkflowProperty t = (TemplateWorkflowProperty) job.getProperty(TemplateWorkflowProperty.class);
-				if (t.getIsStartingWorkflowJob()) {
-					String jobName = templateInstance.getRelatedJobs().get(jobTenplateName);
-					job = (Job) Jenkins.getInstance().getItem(jobName);
-					Jenkins.getInstance().getQueue().schedule((AbstractProject) job);
-					jobs += ",'" + jobName + "' ";
-					result = true;
+			ret = executeWorkflows(names != null ? Arrays.asList(names) : getInstanceNames(template));
+		}
+		finally {
+			timer(template != null ? template : WorkflowMetrics.ANY_TEMPLATE, WorkflowMetrics.EXECUTE_WORKFLOW).record(start);
+		}
+		rsp.setContentType("application/json;charset=UTF-8");
+		rsp.getWriter().write(ret.toString());
+	}
+
+	private Collection<String> getInstanceNames(final String templateName) {
+		final TemplateWorkflowInstances templateInstances = this.instances;
+		if (templateInstances == null) {
+			return Collections.emptySet();
+		}
+		return templateName == null ? templateInstances.keySet() : templateInstances.namesOf(templateName);
+	}
+
+	/**
+	 * Schedules the starting jobs of the given workflows in one batch on the queue, each job once even if workflows share it.
+	 * Needs no workflow lock: instances are replaced, never changed in place, and the starting jobs come from {@link TemplateRegistry}.
+	 *
+	 * @return <code>{result, msg, scheduled: [job names], failed: {workflow: reason}}</code>, result is false if any workflow failed.
+	 */
+	JSONObject executeWorkflows(final Collection<String> workflowNames) {
+		final TemplateWorkflowInstances templateInstances = this.instances;
+		final Map<String, Set<String>> startingJobsByTemplate = new HashMap<String, Set<String>>();
+		final Map<String, AbstractProject> toSchedule = new LinkedHashMap<String, AbstractProject>();
+		final JSONObject failed = new JSONObject();
+
+		for (final String workflowName : workflowNames) {
+			final TemplateWorkflowInstance templateInstance = templateInstances != null ? templateInstances.get(workflowName) : null;
+			if (templateInstance == null) {
+				failed.put(workflowName, "Workflow '" + workflowName + "' not Found!");
+				continue;
+			}
+
+			final String templateKey = TemplateRegistry.key(templateInstance.getTemplateName());
+			Set<String> startingJobs = startingJobsByTemplate.get(templateKey);
+			if (startingJobs == null) {
+				startingJobs = getStartingJobs(templateInstance.getTemplateName());
+				startingJobsByTemplate.put(templateKey, startingJobs);
+			}
+
+			boolean found = false;
+			for (final String startingJob : startingJobs) {
+				final String jobName = templateInstance.getRelatedJobs().get(startingJob);
+				final Item job = jobName != null ? Jenkins.getInstance().getItem(jobName) : null;
+				if (job instanceof AbstractProject) {
+					toSchedule.put(jobName, (AbstractProject) job);
+					found = true;
 				}
 			}
+			if (!found) {
+				failed.put(workflowName, "Starting Job/s not Defined for Workflow '" + workflowName + "'!");
+			}
+		}
 
-		} catch (Exception e) {
-			result = false;
-			msg = "Error - Workflow '" + workflowName + "' was not Executed!";
+		// Queue methods lock the queue, holding it across the batch takes it once instead of once per job.
+		final Queue queue = Jenkins.getInstance().getQueue();
+		synchronized (queue) {
+			for (final AbstractProject job : toSchedule.values()) {
+				queue.schedule(job);
+			}
 		}
 
-		if (result) {
-			msg = jobs.replaceFirst(",", "") + "Scheduled";
+		final JSONArray scheduled = new JSONArray();
+		final StringBuilder msg = new StringBuilder();
+		for (final String jobName : toSchedule.keySet()) {
+			scheduled.add(jobName);
+			msg.append(msg.length() == 0 ? "'" : ", '").append(jobName).append("'");
+		}
+		msg.append(toSchedule.isEmpty() ? "No Jobs Scheduled" : " Scheduled");
+		if (!failed.isEmpty()) {
+			msg.append(", ").append(failed.size()).append(" Workflow/s Failed");
 		}
 
-		JSONObject ret = new JSONObject();
-		ret.put("result", result);
-		ret.put("msg", msg);
+		final JSONObject ret = new JSONObject();
+		ret.put("result", failed.isEmpty());
+		ret.put("msg", msg.toString());
+		ret.put("scheduled", scheduled);
+		ret.put("failed", failed);
 		return ret;
 	}
 
+	/**
+	 * @return names of the building blocks of the template that start its workflows, as instances refer to them.
+	 */
+	Set<String> getStartingJobs(final String templateName) {
+		TemplateItemListener.ensureLoaded();
+
+		final Set<String> startingJobs = new LinkedHashSet<String>();
+		for (final String jobFullName : TemplateRegistry.get().getStartingJobNames(templateName, getScope())) {
+			startingJobs.add(jobFullName.substring(jobFullName.lastIndexOf('/') + 1));
+		}
+		return startingJobs;
+	}
+
 	@JavaScriptMethod
 	public JSONObject deleteInstance(final String instanceName) throws IOException, InterruptedException {
-		tryLock();
+		final long start = System.nanoTime();
 		try {
-			return deleteInstanceWithLock(instanceName);
+			final Lock lock = tryLock(instanceName);
+			try {
+				return deleteInstanceWithLock(instanceName);
+			}
+			finally {
+				lock.unlock();
+			}
 		}
 		finally {
-			unlock();
+			timer(templateOf(instanceName), WorkflowMetrics.DELETE_INSTANCE).record(start);
 		}
 	}
 
 	private JSONObject deleteInstanceWithLock(final String instanceName) throws IOException, InterruptedException {
 		boolean result = true;
 		String msg = "";
-		TemplateWorkflowInstance templateInstance = this.templateInstances.get(instanceName);
-
-		for (String jobName : templateInstance.getRelatedJobs().values()) {
-
-			Job job = (Job) Jenkins.getInstance().getItem(jobName);
-			if (job != null && job.isBuilding()) {
-				result = false;
-				msg = "Job " + job.getName() + " is Currently Building";
-				break;
-			} else if (job != null && job.isInQueue()) {
-				result = false;
-				msg = "Job " + job.getName() + " is in the Build Queue";
-				break;
-			}
+		final TemplateWorkflowInstance templateInstance = getInstance(instanceName);
+		if (templateInstance == null) {
+			result = false;
+			msg = "Workflow '" + instanceName + "' does not exist, it may have been deleted already";
+		}
 
+		String busy = result ? InstanceDeleter.busyReason(templateInstance) : null;
+		if (busy != null) {
+			result = false;
+			msg = busy;
 		}
 
 		if (result) {
 			try {
-				for (String jobName : templateInstance.getRelatedJobs().values()) {
-
-					if (!templateInstance.isJobWasCreateByWorkflow(jobName)) {
-						continue;
-					}
-
-					Job job = (Job) Jenkins.getInstance().getItem(jobName);
-					if (job != null) {
-						job.delete();
-					}
-				}
-				this.templateInstances.remove(instanceName);
-				this.save();
+				InstanceDeleter.deleteJobs(templateInstance);
+				removeInstance(instanceName);
 			} catch (Exception e) {
 				result = false;
 				msg = "Failed to Delete " + instanceName + ", Please Delete it Manually";
 			}
 		}
+		// Written right away: the jobs are gone, the instance must not come back after a crash.
+		if (result) flushInstances();
 
 		JSONObject ret = new JSONObject();
 		ret.put("result", result);
@@ -446,8 +875,76 @@ public class TemplatesWorkflowJob extends ViewJob<TemplatesWorkflowJob, Template
 		return ret;
 	}
 
+	/**
+	 * Starts deleting the given workflows as a run of this job.
+	 * @param busy what to do with workflows whose jobs are building or queued, "skip" (the default) or "wait".
+	 */
+	@JavaScriptMethod
+	public JSONObject deleteInstances(final String[] instanceNames, final String busy) throws IOException {
+		this.checkPermission(CONFIGURE);
+		return startDelete(Arrays.asList(instanceNames), InstanceDeleter.BusyPolicy.of(busy));
+	}
+
+	/**
+	 * Deletes many workflows in the background, posted to <code>deleteInstances</code> below the job's URL: those named by the
+	 * <code>instance</code> parameters, else all instances of <code>template</code>. <code>busy</code> is as for {@link #deleteInstances}.
+	 * Answers with the run doing it, or 409 if an update or delete is already running.
+	 */
+	@RequirePOST
+	public void doDeleteInstances(final StaplerRequest req, final StaplerResponse rsp) throws IOException {
+		this.checkPermission(CONFIGURE);
+
+		final String[] names = req.getParameterValues("instance");
+		final String template = req.getParameter("template");
+		final Collection<String> instanceNames;
+		if (names != null) {
+			instanceNames = Arrays.asList(names);
+		} else if (!StringUtils.isBlank(template)) {
+			instanceNames = getInstanceNames(template);
+		} else {
+			rsp.sendError(HttpServletResponse.SC_BAD_REQUEST, "Name the workflows with instance or template parameters");
+			return;
+		}
+
+		final JSONObject ret = startDelete(instanceNames, InstanceDeleter.BusyPolicy.of(req.getParameter("busy")));
+		rsp.setStatus(ret.optBoolean("result") ? HttpServletResponse.SC_OK : HttpServletResponse.SC_CONFLICT);
+		rsp.setContentType("application/json;charset=UTF-8");
+		rsp.getWriter().write(ret.toString());
+	}
+
+	private synchronized JSONObject startDelete(final Collection<String> instanceNames, final InstanceDeleter.BusyPolicy policy) throws IOException {
+		JSONObject ret = new JSONObject();
+		TemplateswWorkflowRun current = this.updateRun;
+		if (current != null && current.isBuilding()) {
+			ret.put("result", false);
+			ret.put("msg", "An update or delete of workflows is already running");
+			ret.put("run", current.getNumber());
+			ret.put("url", current.getUrl());
+			return ret;
+		}
+
+		final List<String> names = new ArrayList<String>(new LinkedHashSet<String>(instanceNames));
+		final TemplateswWorkflowRun run = newRun();
+		this.updateRun = run;
+		InstanceUpdater.background().submit(new Runnable() {
+			public void run() {
+				run.deleteAll(names, policy, "Deleting " + names.size() + " workflows");
+			}
+		});
+
+		ret.put("result", true);
+		ret.put("run", run.getNumber());
+		ret.put("url", run.getUrl());
+		return ret;
+	}
+
 	@JavaScriptMethod
 	public JSONObject validateJobName(final String newJobName, final boolean allowUseOfExistingJob) {
+		TemplateItemListener.ensureLoaded();
+		return jobNameVerdict(newJobName, allowUseOfExistingJob);
+	}
+
+	private static JSONObject jobNameVerdict(final String newJobName, final boolean allowUseOfExistingJob) {
 
 		String cssClass = "info";
 		String msg = "Valid name";
@@ -459,30 +956,30 @@ public class TemplatesWorkflowJob extends ViewJob<TemplatesWorkflowJob, Template
 			result = false;
 		}
 
-		List<Item> allItems = Jenkins.getInstance().getAllItems();
-		for (Item i : allItems) {
-			Collection<? extends Job> allJobs = i.getAllJobs();
-			for (Job j : allJobs) {
-				if (j.getName().equalsIgnoreCase(newJobName)) {
-					if (allowUseOfExistingJob) {
-
-						TemplateWorkflowProperty t = (TemplateWorkflowProperty) j.getProperty(TemplateWorkflowProperty.class);
-						if (t == null) {
-							cssClass = "warning";
-							msg = "Using existing job defenition";
-						} else {
-							cssClass = "error";
-							msg = "You can't use a job that is a bulding block for a template workflow";
-							result = false;
-						}
-
-					} else {
-						cssClass = "error";
-						msg = "Job already defined with name: '" + newJobName + "'";
-						result = false;
+		Set<String> existingJobs = JobNameIndex.get().lookup(newJobName);
+		if (!existingJobs.isEmpty()) {
+			if (allowUseOfExistingJob) {
+
+				boolean isBuildingBlock = false;
+				for (String jobFullName : existingJobs) {
+					if (TemplateRegistry.get().isBuildingBlock(jobFullName)) {
+						isBuildingBlock = true;
 					}
+				}
 
+				if (!isBuildingBlock) {
+					cssClass = "warning";
+					msg = "Using existing job defenition";
+				} else {
+					cssClass = "error";
+					msg = "You can't use a job that is a bulding block for a template workflow";
+					result = false;
 				}
+
+			} else {
+				cssClass = "error";
+				msg = "Job already defined with name: '" + newJobName + "'";
+				result = false;
 			}
 		}
 
@@ -526,216 +1023,360 @@ public class TemplatesWorkflowJob extends ViewJob<TemplatesWorkflowJob, Template
 			msg = "Workflow name can't be empty!";
 		}
 
-		if (this.templateInstances != null) {
-			for (String instanceName : this.templateInstances.keySet()) {
+		final TemplateWorkflowInstances templateInstances = this.instances;
+		if (templateInstances != null && instanceNewName != null) {
+			for (String instanceName : templateInstances.keySet()) {
 				if (instanceName.equalsIgnoreCase(instanceNewName)) {
 					result = false;
 					msg = "Workflow already defined with name: '" + instanceNewName + "'";
+					break;
 				}
 			}
 		}
 
 		JSONObject ret = new JSONObject();
+		ret.put("cssClass", result ? "info" : "error");
 		ret.put("result", result);
 		ret.put("msg", msg);
 		return ret;
 	}
 
+	/**
+	 * Everything the create form needs checked, in one call: the workflow name, if given, and the proposed name of every job.
+	 * Two fields naming the same job are both errors, as job names are compared ignoring case.
+	 *
+	 * @param jobNames building block name -> proposed job name.
+	 * @return <code>{result, instance, jobs: {building block: verdict}}</code>, each verdict as {@link #validateJobName} returns it.
+	 */
+	@JavaScriptMethod
+	public JSONObject validateAll(final String instanceNewName, final JSONObject jobNames, final boolean allowUseOfExistingJob) {
+		TemplateItemListener.ensureLoaded();
+
+		boolean result = true;
+		JSONObject ret = new JSONObject();
+		if (instanceNewName != null) {
+			JSONObject instanceVerdict = validateTemplateName(instanceNewName);
+			result = instanceVerdict.getBoolean("result");
+			ret.put("instance", instanceVerdict);
+		}
+
+		// lower cased proposed name -> how many fields use it
+		Map<String, Integer> uses = new HashMap<String, Integer>();
+		if (jobNames != null) {
+			for (Object field : jobNames.keySet()) {
+				String key = StringUtils.trimToEmpty(jobNames.optString((String) field)).toLowerCase(Locale.ENGLISH);
+				Integer count = uses.get(key);
+				uses.put(key, count == null ? 1 : count + 1);
+			}
+		}
+
+		JSONObject jobs = new JSONObject();
+		if (jobNames != null) {
+			for (Object field : jobNames.keySet()) {
+				String newJobName = jobNames.optString((String) field);
+				JSONObject verdict = jobNameVerdict(newJobName, allowUseOfExistingJob);
+				if (verdict.getBoolean("result") && uses.get(StringUtils.trimToEmpty(newJobName).toLowerCase(Locale.ENGLISH)) > 1) {
+					verdict.put("cssClass", "error");
+					verdict.put("msg", "2 Jobs Cant Have the Same Name: '" + newJobName + "'");
+					verdict.put("result", false);
+				}
+				result &= verdict.getBoolean("result");
+				jobs.put(field, verdict);
+			}
+		}
+
+		ret.put("result", result);
+		ret.put("jobs", jobs);
+		return ret;
+	}
+
+	/**
+	 * @param instanceName the instance the page was opened for, empty if none was picked.
+	 */
 	@JavaScriptMethod
-	public JSONObject refresh(final String templateName) {
-		tryLock();
+	public JSONObject refresh(final String templateName, final String instanceName) {
+		final long start = System.nanoTime();
 		try {
-			return refreshWithLock(templateName);
+			return refreshForm(templateName, StringUtils.trimToNull(instanceName));
 		}
 		finally {
-			unlock();
+			timer(StringUtils.defaultString(templateName), WorkflowMetrics.REFRESH).record(start);
 		}
 	}
 
-	private JSONObject refreshWithLock(final String templateName) {
+	private JSONObject refreshForm(final String templateName, final String templateInstanceName) {
 		JSONObject ret = new JSONObject();
 
+		// Runs without a lock: instances are replaced, never changed in place, so this is a consistent snapshot.
+		final TemplateWorkflowInstances templateInstances = this.instances;
+
 		// on create
-		if (this.templateInstanceName == null) {
+		if (templateInstanceName == null) {
 			ret.put("result", true);
 			ret.put("msg", "<div>Click the 'Create Workflow' Link to define workflows</div>");
 			return ret;
 			// after delete
-		} else if (!this.templateInstanceName.equals("template.createNewTemplate")) {
-			if (this.templateInstances.get(this.templateInstanceName) == null) {
+		} else if (!templateInstanceName.equals("template.createNewTemplate")) {
+			if (templateInstances == null || templateInstances.get(templateInstanceName) == null) {
 				ret.put("result", true);
 				ret.put("msg", "<div>Click the 'Create Workflow' Link to Define Workflows</div>");
 				return ret;
 			}
 		}
 
-		boolean isNew = this.templateInstanceName.equals("template.createNewTemplate") ? true : false;
-		TemplateWorkflowInstance templateInstance = null;
+		boolean isNew = templateInstanceName.equals("template.createNewTemplate") ? true : false;
 
 		try {
-			final List<Job> relatedJobs;
-			final Map<String, String> jobParameters;
-			if (isNew) {
-				relatedJobs = getRelatedJobs(templateName);
-				jobParameters = getTemplateParamaters(relatedJobs);
-			} else {
-				// if (!isNew) {
-				templateInstance = this.templateInstances.get(this.templateInstanceName);
-				String tname = templateInstance.getTemplateName();
-				jobParameters = getTemplateParamaters(getRelatedJobs(tname));
-
-				relatedJobs = getRelatedJobs(tname);
-				Map<String, String> previousParams = templateInstance.getJobParameters();
-				for (String p : jobParameters.keySet()) {
-					jobParameters.put(p, previousParams.get(p));
-				}
-			}
-			StringBuilder build = new StringBuilder();
-			build.append("<div>&nbsp;</div>");
-
 			if (isNew) {
-				build.append("<div style=\"font-weight:bold;\">Please Select a Workflow Name: </div>");
-				build.append("<input name=\"template.templateInstanceName\" ").append("id=\"template.templateInstanceName\"  ")
-						.append("onChange=\"validateTemplateName()\"").append("onkeydown=\"validateTemplateName()\"")
-						.append("onkeyup=\"validateTemplateName()\"").append("class=\"setting-input\" value=\"\" type=\"text\"/>");
-				build.append("<tr><td></td><td><div id =\"template.templateInstanceName.validation\" style=\"visibility: hidden;\"></div></td></tr>");
+				ret.put("model", getFormModel(templateName).toJSON());
 			} else {
-				build.append("<div>");
-				build.append("<span style=\"font-weight:bold;\">Workflow Name: '").append(this.templateInstanceName).append("'</span>");
-				build.append("<span> (Created From Template: '").append(templateInstance.getTemplateName()).append("')</span>");
-				build.append("</div>");
-				build.append("<input type=\"hidden\" id=\"template.templateInstanceName\" name=\"template.templateInstanceName\" value=\""
-						+ this.templateInstanceName
-						+ "\">");
-			}
-
-			build.append("<div>&nbsp;</div>");
-			build.append("<div style=\"font-weight:bold;\">Workflow is Defined out of ").append(relatedJobs.size()).append(" Jobs:</div>");
-			build.append("<table border=\"0\" cellpadding=\"1\" cellspacing=\"1\">");
-			for (Job j : relatedJobs) {
-				if (isNew) {
-					build.append("<tr>").append("<td>").append(j.getName()).append(":&nbsp;</td>").append("<td style=\"width:300px;\">")
-							.append("<input name=\"template.").append(j.getName()).append("\" ").append("id=\"template.").append(j.getName()).append("\"  ")
-							.append("onChange=\"validateJobName('").append(j.getName()).append("', document.getElementById('template.").append(j.getName())
-							.append("').value)\"").append("onkeydown=\"validateJobName('").append(j.getName()).append("', document.getElementById('template.")
-							.append(j.getName()).append("').value)\"").append("onkeyup=\"validateJobName('").append(j.getName())
-							.append("', document.getElementById('template.").append(j.getName()).append("').value)\"")
-							.append("class=\"setting-input\" value=\"\" type=\"text\"/>").append("</td>").append("</tr>");
-					build.append("<tr><td></td><td><div id =\"").append(j.getName()).append(".validation\" style=\"visibility: hidden;\"></div></td></tr>");
-				} else {
-					String jobReplacedName = templateInstance.getRelatedJobs().get(j.getName());
-					String href = Jenkins.getInstance().getRootUrl() + "job/" + jobReplacedName;
-					build.append("<tr>").append("<td>").append(j.getName()).append(":&nbsp;</td>").append("<td style=\"width:300px;\">")
-							.append("<a class=\"tip\" id=\"").append("template_job.").append(j.getName()).append("\" href=\"").append(href).append("\">")
-							.append(jobReplacedName).append("</a>").append("<input type=\"hidden\" id=\"template.").append(j.getName())
-							.append("\" name=\"template.").append(j.getName()).append("\" value=\"").append(jobReplacedName).append("\">").append("</td>")
-							.append("</tr>");
-				}
-			}
-
-			build.append("</table>");
-			if (isNew) {
-				build.append("<div><input type=\"checkbox\" onchange=\"return validateAllNames();\" id=\"allow_exist_name\" name=\"allow_exist_name\"/>Allow the Use of Existing Jobs</div>");
-			}
-
-			build.append("<div>&nbsp;</div>");
-			build.append("<div>&nbsp;</div>");
-
-			build.append("<div style=\"font-weight:bold;\">Workflow Parameters:</div>");
-			build.append("<table border=\"0\" cellpadding=\"1\" cellspacing=\"1\">");
-			for (String p : jobParameters.keySet()) {
-				String value = jobParameters.get(p) != null ? jobParameters.get(p) : "";
-				build.append("<tr><td>" + p + ":&nbsp;</td><td style=\"width:300px;\"><input name=\"template.").append(p)
-						.append("\"  class=\"setting-input\" value=\"").append(value).append("\" type=\"text\"/></td></tr>");
-			}
-			build.append("</table>");
-			build.append("<div>&nbsp;</div>");
-
-			if (isNew) {
-				build.append("<input type=\"hidden\" name=\"template.operation\" value=\"create\">");
-				build.append("<input class=\"yui-button,yui-submit-button\" onclick=\"return validateCreate();\" type=\"submit\"  value=\"Create\">");
-			} else {
-				build.append("<input type=\"hidden\" name=\"template.operation\" value=\"update\">");
-				build.append("<input class=\"yui-button,yui-submit-button\" onclick=\"return validateUpdate();\" type=\"submit\" name=\"template.operation\" value=\"Update\">");
+				TemplateWorkflowInstance templateInstance = templateInstances.get(templateInstanceName);
+				ret.put("model", getFormModel(templateInstance.getTemplateName()).toJSON());
+
+				JSONObject instance = new JSONObject();
+				instance.put("name", templateInstanceName);
+				instance.put("template", templateInstance.getTemplateName());
+				instance.put("jobs", JSONObject.fromObject(templateInstance.getRelatedJobs()));
+				instance.put("parameters", JSONObject.fromObject(templateInstance.getJobParameters()));
+				instance.put("computed", JSONArray.fromObject(templateInstance.getComputedParameters()));
+				ret.put("instance", instance);
 			}
 
+			ret.put("rootUrl", Jenkins.getInstance().getRootUrl());
 			ret.put("result", true);
-			ret.put("msg", build.toString());
 			return ret;
 
 		} catch (Exception e) {
-			e.printStackTrace();
+			LOGGER.log(Level.WARNING, "Failed to build the form of " + getFullName() + " for '" + templateInstanceName + "'", e);
 			ret.put("result", false);
 			ret.put("msg", "<div>Opps.. an Error Occur (" + e.getMessage() + ")</div>");
 			return ret;
 		}
 	}
 
-	private static List<Job> getRelatedJobs(final String templateName) {
+	/**
+	 * @return the cached form model of the template, built from its building blocks on a miss.
+	 */
+	TemplateFormModel getFormModel(final String templateName) throws IOException {
+		TemplateItemListener.ensureLoaded();
+
+		final String name = StringUtils.defaultString(templateName);
+		final String scope = getScope();
+		final FormModelCache cache = FormModelCache.get();
+		TemplateFormModel model = cache.get(name, scope);
+		if (model != null) {
+			return model;
+		}
+
+		final long generation = cache.generation();
+		final List<Job> relatedJobs = lookupRelatedJobs(name);
+		model = new TemplateFormModel(name, getJobNames(relatedJobs), new ArrayList<String>(getTemplateParamaters(name, relatedJobs).keySet()),
+				new ArrayList<String>(getStartingJobs(name)));
+
+		// Names that are not templates (any more) are not kept, the page can ask for anything.
+		if (!relatedJobs.isEmpty()) {
+			cache.put(model, scope, generation);
+		}
+		return model;
+	}
+
+	/**
+	 * @return the building blocks of the template in this job's scope, see {@link #getScope()}.
+	 */
+	List<Job> getRelatedJobs(final String templateName) {
+		TemplateItemListener.ensureLoaded();
+
 		List<Job> relatedJobs = new ArrayList<Job>();
-		List<Item> allItems = Jenkins.getInstance().getAllItems();
-		for (Item i : allItems) {
-			Collection<? extends Job> allJobs = i.getAllJobs();
-			for (Job j : allJobs) {
-				TemplateWorkflowProperty t = (TemplateWorkflowProperty) j.getProperty(TemplateWorkflowProperty.class);
-				if (t != null) {
-					for (String tName : t.getTemplateName().split(",")) {
-						if (templateName.equalsIgnoreCase(tName.trim())) {
-							relatedJobs.add(j);
-						}
-					}
-				}
+		for (String jobFullName : TemplateRegistry.get().getJobNames(templateName, getScope())) {
+			Job j = Jenkins.getInstance().getItemByFullName(jobFullName, Job.class);
+			if (j != null) {
+				relatedJobs.add(j);
 			}
 		}
 
 		return relatedJobs;
 	}
 
-	private static Map<String, String> getTemplateParamaters(final List<Job> relatedJobs) throws IOException {
-		Pattern pattern = Pattern.compile("@@(.*?)@@");
+	List<Job> lookupRelatedJobs(final String templateName) {
+		final long start = System.nanoTime();
+		final List<Job> relatedJobs = getRelatedJobs(templateName);
+		timer(templateName, WorkflowMetrics.TEMPLATE_LOOKUP).record(start);
+		return relatedJobs;
+	}
 
-		Map<String, String> jobParameters = new HashMap<String, String>();
+	static List<String> getJobNames(final List<Job> relatedJobs) {
+		List<String> jobNames = new ArrayList<String>(relatedJobs.size());
 		for (Job job : relatedJobs) {
-			List<String> lines = FileUtils.readLines(job.getConfigFile().getFile());
-			for (String line : lines) {
-				Matcher matcher = pattern.matcher(line);
-				while (matcher.find()) {
-					jobParameters.put(matcher.group(1), null);
-				}
-			}
+			jobNames.add(job.getName());
+		}
+		return jobNames;
+	}
+
+	CompiledTemplate getCompiledTemplate(final String templateName, final Job job, final List<String> templateJobNames) throws IOException {
+		return TemplateCache.get().get(job.getFullName(), job.getConfigFile().getFile(), templateJobNames, timer(templateName, WorkflowMetrics.CONFIG_READ));
+	}
+
+	private Map<String, String> getTemplateParamaters(final String templateName, final List<Job> relatedJobs) throws IOException {
+		List<String> templateJobNames = getJobNames(relatedJobs);
+
+		Set<String> paramsName = new TreeSet<String>();
+		for (Job job : relatedJobs) {
+			paramsName.addAll(getCompiledTemplate(templateName, job, templateJobNames).getParameters());
 		}
 
 		Map<String, String> map = new LinkedHashMap<String, String>();
-		List<String> paramsName = new ArrayList<String>(jobParameters.keySet());
-		Collections.sort(paramsName);
 		for (String k : paramsName) {
-			map.put(k, jobParameters.get(k));
+			map.put(k, null);
 		}
 
 		return map;
 	}
 
-	private void addTemplateInfo(final String instanceName, final Map<String, String> replacementsParams, final Map<String, String> replacementsJobs,
-			final Map<String, Boolean> isNewJobMap) throws IOException {
+	synchronized void addTemplateInfo(final String templateName, final String instanceName, final Map<String, String> replacementsParams,
+			final Set<String> computedParams, final Map<String, String> replacementsJobs, final Map<String, Boolean> isNewJobMap, final Map<String, String> jobHashes) throws IOException {
 
-		if (this.templateInstances == null) {
-			this.templateInstances = new TemplateWorkflowInstances();
+		if (this.instances == null) {
+			this.instances = new TemplateWorkflowInstances(new InstanceStore(this), Collections.<InstanceSummary>emptyList());
 		}
 
-		TemplateWorkflowInstance instance = this.templateInstances.get(instanceName);
-		if (instance == null) {
-			instance = new TemplateWorkflowInstance(this.templateName, instanceName, isNewJobMap);
+		// Replaced rather than changed in place, lock free readers may still be looking at the previous one.
+		TemplateWorkflowInstance previous = this.instances.get(instanceName);
+		TemplateWorkflowInstance instance = previous == null
+				? new TemplateWorkflowInstance(templateName, instanceName, replacementsParams, replacementsJobs, isNewJobMap, jobHashes, computedParams)
+				: new TemplateWorkflowInstance(previous.getTemplateName(), instanceName, replacementsParams, replacementsJobs, previous.getIsNewJobMap(), jobHashes,
+						computedParams);
+		this.instances.put(instanceName, instance);
+		instanceChanged(instanceName);
+	}
+
+	TemplateWorkflowInstance getInstance(final String instanceName) {
+		final TemplateWorkflowInstances instances = this.instances;
+		return instances != null ? instances.get(instanceName) : null;
+	}
+
+	/**
+	 * Forgets the instance, the caller writes the change with {@link #flushInstances()} or {@link WriteBehindSaver}.
+	 */
+	synchronized void removeInstance(final String instanceName) {
+		if (this.instances != null) {
+			this.instances.remove(instanceName);
 		}
+		instanceChanged(instanceName);
+	}
 
-		instance.setJobParameters(replacementsParams);
-		instance.setRelatedJobs(replacementsJobs);
-		this.templateInstances.put(instanceName, instance);
+	private synchronized void instanceChanged(final String instanceName) {
+		if (this.dirtyInstances == null) {
+			this.dirtyInstances = new TreeSet<String>();
+		}
+		this.dirtyInstances.add(instanceName);
+	}
 
-		this.addProperty(this.templateInstances);
-		this.save();
+	/**
+	 * Writes the instances changed since the last call, each to its own file, then the summaries; does nothing if there are none.
+	 * Callers changing many instances call this once at the end instead of saving after each one.
+	 */
+	synchronized void flushInstances() throws IOException {
+		if (this.dirtyInstances == null || this.dirtyInstances.isEmpty()) {
+			return;
+		}
+
+		final long start = System.nanoTime();
+		final InstanceStore store = new InstanceStore(this);
+		final TemplateWorkflowInstances instances = this.instances;
+		final Set<String> pending = new TreeSet<String>(this.dirtyInstances);
+		this.dirtyInstances.clear();
+		final List<InstanceSummary> saved = new ArrayList<InstanceSummary>();
+		final List<String> deleted = new ArrayList<String>();
+		try {
+			store.logPending(pending);
+			for (final Iterator<String> i = pending.iterator(); i.hasNext();) {
+				final String instanceName = i.next();
+				final TemplateWorkflowInstance instance = instances != null ? instances.get(instanceName) : null;
+				if (instance == null) {
+					store.delete(instanceName);
+					deleted.add(instanceName);
+				}
+				else {
+					store.write(instance);
+					instances.saved(instanceName, instance);
+					saved.add(new InstanceSummary(instance));
+				}
+				i.remove();
+			}
+		}
+		catch (final IOException e) {
+			this.dirtyInstances.addAll(pending); // Everything not written yet, including the one that failed.
+			timer(WorkflowMetrics.ANY_TEMPLATE, WorkflowMetrics.SAVE).recordFailure(start);
+			throw e;
+		}
+		finally {
+			// Only what was written; those not are still pending in the log, so a restart reads their files.
+			try {
+				store.logDone(saved, deleted);
+			}
+			catch (final IOException e) {
+				LOGGER.log(Level.WARNING, "Failed to log the saved workflows of " + this.getFullName() + ", they are read again on the next start", e);
+			}
+		}
+
+		// Only costs about as much as the log lines it replaces.
+		if (store.shouldWriteSummaries()) {
+			try {
+				store.writeSummaries(instances != null ? instances.summaries() : Collections.<InstanceSummary>emptyList());
+			}
+			catch (final IOException e) {
+				LOGGER.log(Level.WARNING, "Failed to write the workflow summaries of " + this.getFullName() + ", the log is kept", e);
+			}
+		}
+		timer(WorkflowMetrics.ANY_TEMPLATE, WorkflowMetrics.SAVE).record(start);
+	}
+
+	@Override
+	public void onLoad(final ItemGroup<? extends Item> parent, final String name) throws IOException {
+		super.onLoad(parent, name);
+
+		// Only the summaries are read, unless they are missing or stale.
+		final InstanceStore store = new InstanceStore(this);
+		final List<InstanceSummary> summaries = store.loadSummaries();
+		boolean summariesStale = summaries == null;
+		final TemplateWorkflowInstances loaded = new TemplateWorkflowInstances(store,
+				summaries != null ? summaries : Collections.<InstanceSummary>emptyList());
+		if (summariesStale) {
+			for (final TemplateWorkflowInstance instance : store.load().values()) {
+				loaded.put(instance.getInstanceName(), instance);
+				loaded.saved(instance.getInstanceName(), instance);
+			}
+		}
+
+		// Configs from before the instances had their own files keep them in the job, move them out once.
+		final TemplateWorkflowInstances legacy = this.templateInstances != null ? this.templateInstances : this.getProperty(TemplateWorkflowInstances.class);
+		if (legacy != null) {
+			for (final TemplateWorkflowInstance instance : legacy.values()) {
+				if (loaded.get(instance.getInstanceName()) == null) {
+					store.write(instance);
+					loaded.put(instance.getInstanceName(), instance);
+					loaded.saved(instance.getInstanceName(), instance);
+					summariesStale = true;
+				}
+			}
+			this.templateInstances = null;
+			if (this.removeProperty(TemplateWorkflowInstances.class) == null) {
+				this.save();
+			}
+		}
+
+		if (summariesStale) {
+			store.writeSummaries(loaded.summaries());
+		}
+		this.instances = loaded;
 	}
 
 	@Override
 	protected void reload() {
-	};
+		this.runs.load(this, new RunMap.Constructor<TemplateswWorkflowRun>() {
+			public TemplateswWorkflowRun create(final File dir) throws IOException {
+				return new TemplateswWorkflowRun(TemplatesWorkflowJob.this, dir);
+			}
+		});
+	}
 }
@@ -1,12 +1,20 @@
 package org.jenkins.plugin.templateWorkflows;
 
+import hudson.model.BuildListener;
+import hudson.model.Result;
 import hudson.model.Run;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.Collection;
 
+/**
+ * A background update, creation or delete of the instances of a {@link TemplatesWorkflowJob}, kept in its build history with a console log.
+ */
 public class TemplateswWorkflowRun extends Run<TemplatesWorkflowJob,TemplateswWorkflowRun> {
 
+    private transient volatile UpdateProgress progress;
+
     public TemplateswWorkflowRun(TemplatesWorkflowJob project) throws IOException {
         super(project);
     }
@@ -15,4 +23,100 @@ public class TemplateswWorkflowRun extends Run<TemplatesWorkflowJob,TemplateswWo
         super(project, buildDir);
     }
 
+    /**
+     * @return progress of the update, null if it has not started or the run was loaded from disk.
+     */
+    public UpdateProgress getProgress() {
+        return progress;
+    }
+
+    /**
+     * Blocks until all the given instances have been updated.
+     * @param reason logged first.
+     * @param validateFirst to render and check all of them before writing anything, see {@link InstanceUpdater#updateAllValidated}.
+     */
+    void updateAll(final Collection<TemplateWorkflowInstance> instances, final String reason, final boolean validateFirst) {
+        run(new Runner() {
+            @Override
+            public Result run(BuildListener listener) throws Exception {
+                listener.getLogger().println(reason);
+                listener.getLogger().println("Updating " + instances.size() + " workflows");
+                UpdateProgress p = new UpdateProgress(listener.getLogger(), instances.size());
+                progress = p;
+
+                if (validateFirst) {
+                    InstanceUpdater.updateAllValidated(getParent(), instances, p);
+                } else {
+                    InstanceUpdater.updateAll(getParent(), instances, p);
+                }
+                p.finish();
+                return p.getFailed() == 0 ? Result.SUCCESS : p.getFailed() == instances.size() ? Result.FAILURE : Result.UNSTABLE;
+            }
+
+            @Override
+            public void post(BuildListener listener) {
+            }
+
+            @Override
+            public void cleanUp(BuildListener listener) {
+            }
+        });
+    }
+
+    /**
+     * Blocks until all the instances of the prepared matrix have been created or failed.
+     * @param reason logged first.
+     */
+    void createAll(final BulkInstanceCreator creator, final String reason) {
+        run(new Runner() {
+            @Override
+            public Result run(BuildListener listener) throws Exception {
+                listener.getLogger().println(reason);
+                listener.getLogger().println("Creating " + creator.size() + " workflows of template '" + creator.getTemplateName() + "'");
+                UpdateProgress p = new UpdateProgress(listener.getLogger(), creator.size(), "created", "created");
+                progress = p;
+
+                creator.create(p);
+                p.finish();
+                return p.getFailed() == 0 ? Result.SUCCESS : p.getFailed() == creator.size() ? Result.FAILURE : Result.UNSTABLE;
+            }
+
+            @Override
+            public void post(BuildListener listener) {
+            }
+
+            @Override
+            public void cleanUp(BuildListener listener) {
+            }
+        });
+    }
+
+    /**
+     * Blocks until all the given instances have been deleted or given up on.
+     * @param reason logged first.
+     */
+    void deleteAll(final Collection<String> instanceNames, final InstanceDeleter.BusyPolicy policy, final String reason) {
+        run(new Runner() {
+            @Override
+            public Result run(BuildListener listener) throws Exception {
+                listener.getLogger().println(reason);
+                listener.getLogger().println("Deleting " + instanceNames.size() + " workflows, busy ones are " + (policy == InstanceDeleter.BusyPolicy.WAIT ? "waited for" : "skipped"));
+                UpdateProgress p = new UpdateProgress(listener.getLogger(), instanceNames.size(), "deleted", "deleted");
+                progress = p;
+
+                InstanceDeleter.deleteAll(getParent(), instanceNames, policy, p);
+                p.finish();
+                return p.getFailed() == 0 ? Result.SUCCESS : Result.UNSTABLE;
+            }
+
+            @Override
+            public void post(BuildListener listener) {
+            }
+
+            @Override
+            public void cleanUp(BuildListener listener) {
+            }
+        });
+    }
+
 }
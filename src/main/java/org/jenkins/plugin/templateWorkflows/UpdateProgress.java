@@ -0,0 +1,90 @@
+package org.jenkins.plugin.templateWorkflows;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import net.sf.json.JSONArray;
+import net.sf.json.JSONObject;
+
+/**
+ * Live progress of an update or delete of many instances, written to a run's console as it goes and polled by the page.
+ * Instances finish on several threads at once, so everything here is synchronized.
+ */
+public final class UpdateProgress {
+
+	private final PrintStream log;
+	private final int total;
+	// what happened to a done instance and to its jobs: "updated" and "changed", or "deleted" and "deleted"
+	private final String action;
+	private final String jobAction;
+	private final long started = System.currentTimeMillis();
+	private final List<InstanceUpdateResult> results = new ArrayList<InstanceUpdateResult>();
+	private int failed;
+	private boolean finished;
+
+	public UpdateProgress(final PrintStream log, final int total) {
+		this(log, total, "updated", "changed");
+	}
+
+	UpdateProgress(final PrintStream log, final int total, final String action, final String jobAction) {
+		this.log = log;
+		this.total = total;
+		this.action = action;
+		this.jobAction = jobAction;
+	}
+
+	synchronized void jobApplied(final String instanceName, final String jobName, final boolean changed) {
+		if (this.log != null) this.log.println("[" + instanceName + "] " + (changed ? "updated" : "unchanged") + " job '" + jobName + "'");
+	}
+
+	synchronized void println(final String line) {
+		if (this.log != null) this.log.println(line);
+	}
+
+	synchronized void instanceFinished(final InstanceUpdateResult result) {
+		this.results.add(result);
+		if (!result.isUpdated()) this.failed++;
+
+		if (this.log != null) {
+			if (result.isUpdated()) {
+				this.log.println("[" + result.getInstanceName() + "] done, " + result.getChangedJobs() + " of " + result.getJobs() + " jobs " + this.jobAction + " in "
+						+ result.getDurationMillis() + " ms (" + this.results.size() + "/" + this.total + ")");
+			}
+			else {
+				this.log.println("[" + result.getInstanceName() + "] FAILED: " + result.getMsg() + " (" + this.results.size() + "/" + this.total + ")");
+			}
+		}
+	}
+
+	synchronized void finish() {
+		this.finished = true;
+		if (this.log != null) {
+			this.log.println((this.results.size() - this.failed) + " workflows have been " + this.action + ", " + this.failed + " have not, in "
+					+ (System.currentTimeMillis() - this.started) + " ms");
+		}
+	}
+
+	public synchronized int getFailed() {
+		return this.failed;
+	}
+
+	public synchronized JSONObject toJSON() {
+		JSONObject ret = new JSONObject();
+		ret.put("running", !this.finished);
+		ret.put("action", this.action);
+		ret.put("total", this.total);
+		ret.put("done", this.results.size());
+		ret.put("updated", this.results.size() - this.failed);
+		ret.put("failed", this.failed);
+		ret.put("elapsed", System.currentTimeMillis() - this.started);
+		if (this.finished) {
+			JSONArray instances = new JSONArray();
+			for (InstanceUpdateResult r : this.results) {
+				instances.add(r.toJSON());
+			}
+			ret.put("instances", instances);
+		}
+		return ret;
+	}
+}
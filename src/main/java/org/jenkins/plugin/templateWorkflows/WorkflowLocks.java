@@ -0,0 +1,43 @@
+package org.jenkins.plugin.templateWorkflows;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Instance locks of one {@link TemplatesWorkflowJob}, striped by instance name.
+ * Operations on different workflow jobs never wait for each other, and operations on different instances of the
+ * same workflow job only do if their names happen to share a stripe.
+ */
+final class WorkflowLocks {
+
+	private static final int STRIPES = 32;
+	private static final long TIMEOUT_SECONDS = 5;
+
+	private final Lock[] stripes = new Lock[STRIPES];
+
+	WorkflowLocks() {
+		for (int i = 0; i < STRIPES; i++) {
+			this.stripes[i] = new ReentrantLock(true);
+		}
+	}
+
+	/**
+	 * @return the held lock, to be released by the caller.
+	 */
+	Lock lockInstance(final String instanceName) {
+		final Lock lock = this.stripes[stripe(instanceName)];
+		try {
+			if (lock.tryLock(TIMEOUT_SECONDS, TimeUnit.SECONDS)) return lock;
+		}
+		catch (final InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		throw new IllegalStateException("Could not aquire lock for '" + instanceName + "' within " + TIMEOUT_SECONDS + " seconds.  Another operation is in progress.");
+	}
+
+	private static int stripe(final String instanceName) {
+		final int h = instanceName == null ? 0 : instanceName.hashCode();
+		return ((h ^ (h >>> 16)) & 0x7fffffff) % STRIPES;
+	}
+}
@@ -0,0 +1,261 @@
+package org.jenkins.plugin.templateWorkflows;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+
+import org.kohsuke.stapler.export.Exported;
+import org.kohsuke.stapler.export.ExportedBean;
+
+/**
+ * Timers for the phases of workflow operations, tagged with the workflow job and the template.
+ * Recording is a map lookup and a few atomic adds, cheap enough to leave on for every call.
+ * Series live until the workflow job is deleted or renamed. A workflow job has at most
+ * <code>org.jenkins.plugin.templateWorkflows.WorkflowMetrics.maxSeries</code> of them (1024 by default), past that new templates are
+ * recorded under {@link #ANY_TEMPLATE}.
+ */
+public final class WorkflowMetrics {
+
+	// Whole operations.
+	static final String SUBMIT = "submit";
+	static final String UPDATE_ALL = "update_all";
+	static final String REFRESH = "refresh";
+	static final String EXECUTE_WORKFLOW = "execute_workflow";
+	static final String DELETE_INSTANCE = "delete_instance";
+	// Phases of operations.
+	static final String TEMPLATE_LOOKUP = "template_lookup";
+	static final String CONFIG_READ = "config_read";
+	static final String RENDER = "render";
+	static final String VALIDATE = "validate";
+	static final String CREATE_JOB = "create_job";
+	static final String UPDATE_JOB = "update_job";
+	static final String SAVE = "save";
+	static final String LOCK_WAIT = "lock_wait";
+	static final String LOCK_HOLD = "lock_hold";
+
+	/**
+	 * Template tag of phases that are not about one template, such as locking and saving.
+	 */
+	static final String ANY_TEMPLATE = "";
+
+	static final int MAX_SERIES = Math.max(1, Integer.getInteger(WorkflowMetrics.class.getName() + ".maxSeries", 1024));
+
+	private static final WorkflowMetrics INSTANCE = new WorkflowMetrics();
+
+	public static WorkflowMetrics get() {
+		return INSTANCE;
+	}
+
+	// workflow job full name -> (template + '\n' + phase -> timer)
+	private final Map<String, Map<String, Timer>> timers = new ConcurrentHashMap<String, Map<String, Timer>>();
+
+	WorkflowMetrics() {
+	}
+
+	@ExportedBean
+	public static final class Timer {
+		private final String workflowJob;
+		private final String template;
+		private final String phase;
+		private final AtomicLong count = new AtomicLong();
+		private final AtomicLong failures = new AtomicLong();
+		private final AtomicLong totalNanos = new AtomicLong();
+		private final AtomicLong maxNanos = new AtomicLong();
+
+		Timer(final String workflowJob, final String template, final String phase) {
+			this.workflowJob = workflowJob;
+			this.template = template;
+			this.phase = phase;
+		}
+
+		/**
+		 * @param startNanos what {@link System#nanoTime()} returned when the phase started.
+		 */
+		void record(final long startNanos) {
+			final long nanos = System.nanoTime() - startNanos;
+			this.count.incrementAndGet();
+			this.totalNanos.addAndGet(nanos);
+			long max = this.maxNanos.get();
+			while (nanos > max && !this.maxNanos.compareAndSet(max, nanos)) {
+				max = this.maxNanos.get();
+			}
+		}
+
+		/**
+		 * Counts a failed attempt, which is also recorded as a normal one.
+		 */
+		void recordFailure(final long startNanos) {
+			this.failures.incrementAndGet();
+			record(startNanos);
+		}
+
+		@Exported
+		public String getTemplate() {
+			return this.template;
+		}
+
+		@Exported
+		public String getPhase() {
+			return this.phase;
+		}
+
+		@Exported
+		public long getCount() {
+			return this.count.get();
+		}
+
+		/**
+		 * @return how many of the {@link #getCount()} calls failed, for locks the ones that timed out.
+		 */
+		@Exported
+		public long getFailures() {
+			return this.failures.get();
+		}
+
+		@Exported
+		public double getTotalSeconds() {
+			return this.totalNanos.get() / 1e9;
+		}
+
+		@Exported
+		public double getMaxSeconds() {
+			return this.maxNanos.get() / 1e9;
+		}
+	}
+
+	Timer timer(final String workflowJob, final String template, final String phase) {
+		Map<String, Timer> jobTimers = this.timers.get(workflowJob);
+		if (jobTimers == null) {
+			synchronized (this.timers) {
+				jobTimers = this.timers.get(workflowJob);
+				if (jobTimers == null) {
+					jobTimers = new ConcurrentHashMap<String, Timer>();
+					this.timers.put(workflowJob, jobTimers);
+				}
+			}
+		}
+
+		final String key = template + '\n' + phase;
+		Timer timer = jobTimers.get(key);
+		if (timer == null) {
+			synchronized (jobTimers) {
+				timer = jobTimers.get(key);
+				if (timer == null) {
+					if (jobTimers.size() >= MAX_SERIES && !ANY_TEMPLATE.equals(template)) return timer(workflowJob, ANY_TEMPLATE, phase);
+					timer = new Timer(workflowJob, template, phase);
+					jobTimers.put(key, timer);
+				}
+			}
+		}
+		return timer;
+	}
+
+	/**
+	 * @return the timers of the workflow job, sorted by template and phase.
+	 */
+	List<Timer> getTimers(final String workflowJob) {
+		final Map<String, Timer> jobTimers = this.timers.get(workflowJob);
+		if (jobTimers == null) return Collections.emptyList();
+
+		final List<Timer> ret = new ArrayList<Timer>(jobTimers.values());
+		Collections.sort(ret, new Comparator<Timer>() {
+			public int compare(final Timer a, final Timer b) {
+				final int c = a.template.compareTo(b.template);
+				return c != 0 ? c : a.phase.compareTo(b.phase);
+			}
+		});
+		return ret;
+	}
+
+	void remove(final String workflowJob) {
+		this.timers.remove(workflowJob);
+	}
+
+	/**
+	 * @return the timers of the workflow job in the Prometheus text exposition format.
+	 */
+	String toText(final String workflowJob) {
+		final List<Timer> jobTimers = getTimers(workflowJob);
+		final StringBuilder sb = new StringBuilder();
+		sb.append("# HELP template_workflows_seconds Time spent in workflow operations and their phases.\n");
+		sb.append("# TYPE template_workflows_seconds summary\n");
+		for (final Timer t : jobTimers) {
+			sample(sb, "template_workflows_seconds_count", t, Long.toString(t.getCount()));
+			sample(sb, "template_workflows_seconds_sum", t, Double.toString(t.getTotalSeconds()));
+		}
+		sb.append("# HELP template_workflows_seconds_max Longest single call since startup.\n");
+		sb.append("# TYPE template_workflows_seconds_max gauge\n");
+		for (final Timer t : jobTimers) {
+			sample(sb, "template_workflows_seconds_max", t, Double.toString(t.getMaxSeconds()));
+		}
+		sb.append("# HELP template_workflows_failures_total Failed calls, for lock_wait the ones that timed out.\n");
+		sb.append("# TYPE template_workflows_failures_total counter\n");
+		for (final Timer t : jobTimers) {
+			sample(sb, "template_workflows_failures_total", t, Long.toString(t.getFailures()));
+		}
+		return sb.toString();
+	}
+
+	private static void sample(final StringBuilder sb, final String name, final Timer t, final String value) {
+		sb.append(name).append("{workflow_job=\"");
+		label(sb, t.workflowJob);
+		sb.append("\",template=\"");
+		label(sb, t.template);
+		sb.append("\",phase=\"").append(t.phase).append("\"} ").append(value).append('\n');
+	}
+
+	private static void label(final StringBuilder sb, final String value) {
+		for (int i = 0; i < value.length(); i++) {
+			final char c = value.charAt(i);
+			if (c == '\\' || c == '"') {
+				sb.append('\\').append(c);
+			}
+			else if (c == '\n') {
+				sb.append("\\n");
+			}
+			else {
+				sb.append(c);
+			}
+		}
+	}
+
+	/**
+	 * @return the held lock, recording how long it is held when it is released.
+	 */
+	static Lock timed(final Lock held, final Timer hold) {
+		final long start = System.nanoTime();
+		return new Lock() {
+			public void unlock() {
+				hold.record(start);
+				held.unlock();
+			}
+
+			public void lock() {
+				held.lock();
+			}
+
+			public void lockInterruptibly() throws InterruptedException {
+				held.lockInterruptibly();
+			}
+
+			public boolean tryLock() {
+				return held.tryLock();
+			}
+
+			public boolean tryLock(final long time, final TimeUnit unit) throws InterruptedException {
+				return held.tryLock(time, unit);
+			}
+
+			public Condition newCondition() {
+				return held.newCondition();
+			}
+		};
+	}
+}
@@ -0,0 +1,96 @@
+package org.jenkins.plugin.templateWorkflows;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Coalesces bursts of single instance edits into one write per workflow job.
+ * A job is written at most <code>org.jenkins.plugin.templateWorkflows.WriteBehindSaver.delay</code> ms
+ * (2000 by default, 0 writes straight away) after its first unsaved change, and everything pending is written on shutdown.
+ */
+final class WriteBehindSaver {
+
+	private static final Logger LOGGER = Logger.getLogger(WriteBehindSaver.class.getName());
+
+	static final long DELAY_MILLIS = Long.getLong(WriteBehindSaver.class.getName() + ".delay", 2000);
+
+	private static final Set<TemplatesWorkflowJob> PENDING = new LinkedHashSet<TemplatesWorkflowJob>();
+
+	private static ScheduledExecutorService timer;
+
+	private WriteBehindSaver() {
+	}
+
+	private static synchronized ScheduledExecutorService timer() {
+		if (timer == null) {
+			timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+				public Thread newThread(final Runnable r) {
+					final Thread t = new Thread(r, "Template workflow write-behind");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+		}
+		return timer;
+	}
+
+	/**
+	 * Makes sure the job's unsaved instance changes get written within the delay.
+	 */
+	static void schedule(final TemplatesWorkflowJob job) {
+		if (DELAY_MILLIS <= 0) {
+			flush(job);
+			return;
+		}
+
+		synchronized (PENDING) {
+			if (!PENDING.add(job)) return; // Already due, this change goes out with that write.
+		}
+		timer().schedule(new Runnable() {
+			public void run() {
+				synchronized (PENDING) {
+					if (!PENDING.remove(job)) return; // Flushed already.
+				}
+				flush(job);
+			}
+		}, DELAY_MILLIS, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Drops a pending write, for jobs that have been deleted.
+	 */
+	static void cancel(final TemplatesWorkflowJob job) {
+		synchronized (PENDING) {
+			PENDING.remove(job);
+		}
+	}
+
+	static void flushAll() {
+		final List<TemplatesWorkflowJob> jobs;
+		synchronized (PENDING) {
+			jobs = new ArrayList<TemplatesWorkflowJob>(PENDING);
+			PENDING.clear();
+		}
+		for (final TemplatesWorkflowJob job : jobs) {
+			flush(job);
+		}
+	}
+
+	private static void flush(final TemplatesWorkflowJob job) {
+		try {
+			job.flushInstances();
+		}
+		catch (final IOException e) {
+			LOGGER.log(Level.WARNING, "Failed to save the workflows of " + job.getFullName(), e);
+		}
+	}
+}
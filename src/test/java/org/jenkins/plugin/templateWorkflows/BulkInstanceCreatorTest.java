@@ -0,0 +1,139 @@
+package org.jenkins.plugin.templateWorkflows;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+
+import org.junit.Test;
+
+public class BulkInstanceCreatorTest {
+
+	private static final Set<String> BLOCKS = new TreeSet<String>(Arrays.asList("build", "deploy"));
+	private static final Set<String> PARAMETERS = new TreeSet<String>(Arrays.asList("BRANCH", "URL"));
+
+	private static List<String> check(final String csv) {
+		final List<String> errors = new ArrayList<String>();
+		final List<BulkInstanceCreator.Row> rows = BulkInstanceCreator.parseCsv(csv, errors);
+		assertEquals(Collections.<String>emptyList(), errors);
+		BulkInstanceCreator.checkRows(rows, "T", BLOCKS, PARAMETERS, errors);
+		return errors;
+	}
+
+	@Test
+	public void readsPlainRecords() {
+		assertEquals(Arrays.asList(Arrays.asList("a", "b", ""), Arrays.asList("c", "", "d")), BulkInstanceCreator.readCsv("a,b,\nc,,d\n"));
+	}
+
+	@Test
+	public void readsQuotedFields() {
+		assertEquals(Arrays.asList(Arrays.asList("a,b", "say \"hi\"", "")), BulkInstanceCreator.readCsv("\"a,b\",\"say \"\"hi\"\"\",\"\""));
+	}
+
+	@Test
+	public void readsLineBreaksInQuotedFields() {
+		assertEquals(Arrays.asList(Arrays.asList("x", "line 1\nline 2\r\nline 3"), Arrays.asList("y", "z")),
+				BulkInstanceCreator.readCsv("x,\"line 1\nline 2\r\nline 3\"\r\ny,z\r\n"));
+	}
+
+	@Test
+	public void readsLastRecordWithoutLineBreak() {
+		assertEquals(Arrays.asList(Arrays.asList("a"), Arrays.asList("b")), BulkInstanceCreator.readCsv("a\rb"));
+		assertEquals(Collections.<List<String>>emptyList(), BulkInstanceCreator.readCsv(""));
+	}
+
+	@Test
+	public void parsesColumns() {
+		final List<String> errors = new ArrayList<String>();
+		final List<BulkInstanceCreator.Row> rows = BulkInstanceCreator.parseCsv(
+				"instance,job:build,job: deploy,BRANCH,computed:URL\n"
+				+ "wf1,wf1-build,wf1-deploy,\"main, with comma\",\"http://x/${BRANCH}\"\n"
+				+ "\n"
+				+ "wf2,wf2-build,wf2-deploy,dev,u\n", errors);
+		assertEquals(Collections.<String>emptyList(), errors);
+		assertEquals(2, rows.size());
+
+		final BulkInstanceCreator.Row row = rows.get(0);
+		assertEquals(1, row.number);
+		assertEquals("wf1", row.instanceName);
+		assertEquals("wf1-build", row.jobs.get("build"));
+		assertEquals("wf1-deploy", row.jobs.get("deploy"));
+		assertEquals("main, with comma", row.parameters.get("BRANCH"));
+		assertEquals("http://x/${BRANCH}", row.parameters.get("URL"));
+		assertEquals(Collections.singleton("URL"), row.computed);
+		assertEquals(3, rows.get(1).number);
+	}
+
+	@Test
+	public void reportsBadHeaderAndColumnCount() {
+		final List<String> errors = new ArrayList<String>();
+		BulkInstanceCreator.parseCsv("name,job:build\nwf1,b\n", errors);
+		assertEquals(Arrays.asList("The first column has to be 'instance'"), errors);
+
+		errors.clear();
+		assertTrue(BulkInstanceCreator.parseCsv("instance,job:build\nwf1,b,extra\n", errors).isEmpty());
+		assertEquals(Arrays.asList("Row 1: 3 columns, the header has 2"), errors);
+
+		errors.clear();
+		BulkInstanceCreator.parseCsv("", errors);
+		assertEquals(Arrays.asList("No header row"), errors);
+	}
+
+	@Test
+	public void acceptsValidMatrix() {
+		assertEquals(Collections.<String>emptyList(), check("instance,job:build,job:deploy,BRANCH,URL\n"
+				+ "wf1, wf1-build ,wf1-deploy,main,u1\n"
+				+ "wf2,wf2-build,wf2-deploy,dev,u2\n"));
+	}
+
+	@Test
+	public void trimsGeneratedJobNames() {
+		final List<String> errors = new ArrayList<String>();
+		final List<BulkInstanceCreator.Row> rows = BulkInstanceCreator.parseCsv("instance,job:build,job:deploy,BRANCH,URL\nwf1, wf1-build ,wf1-deploy,main,u\n", errors);
+		BulkInstanceCreator.checkRows(rows, "T", BLOCKS, PARAMETERS, errors);
+		assertEquals("wf1-build", rows.get(0).jobs.get("build"));
+	}
+
+	@Test
+	public void reportsDuplicateGeneratedNames() {
+		assertEquals(Arrays.asList("Row 2 (wf2): job name 'WF1-build' is used more than once", "Row 3 (wf3): job name 'wf2-x' is used more than once"),
+				check("instance,job:build,job:deploy,BRANCH,URL\n"
+						+ "wf1,wf1-build,wf1-deploy,main,u\n"
+						+ "wf2,WF1-build,wf2-x,main,u\n"
+						+ "wf3,wf3-build,wf2-x,main,u\n"));
+	}
+
+	@Test
+	public void reportsDuplicateInstanceNames() {
+		assertEquals(Arrays.asList("Row 2 (WF1): instance name given more than once"), check("instance,job:build,job:deploy,BRANCH,URL\n"
+				+ "wf1,wf1-build,wf1-deploy,main,u\n"
+				+ "WF1,wf2-build,wf2-deploy,main,u\n"));
+	}
+
+	@Test
+	public void reportsMissingBuildingBlockColumn() {
+		assertEquals(Arrays.asList("Row 1 (wf1): no job name for building block 'deploy'"), check("instance,job:build,BRANCH,URL\n"
+				+ "wf1,wf1-build,main,u\n"));
+	}
+
+	@Test
+	public void reportsUnknownColumnsAndMissingValues() {
+		assertEquals(Arrays.asList("Row 1 (wf1): no value for parameter 'URL'", "Row 1 (wf1): 'OTHER' is not a parameter of template 'T'",
+				"Row 1 (wf1): no job name for building block 'deploy'", "Row 1 (wf1): 'test' is not a building block of template 'T'"),
+				check("instance,job:build,job:deploy,job:test,BRANCH,URL,OTHER\n"
+						+ "wf1,wf1-build, ,wf1-test,main,,o\n"));
+	}
+
+	@Test
+	public void reportsComputedParametersInCycle() {
+		final List<String> errors = check("instance,job:build,job:deploy,computed:BRANCH,computed:URL\n"
+				+ "wf1,wf1-build,wf1-deploy,${URL},${BRANCH}\n");
+		assertEquals(1, errors.size());
+		assertTrue(errors.get(0), errors.get(0).startsWith("Row 1 (wf1): Parameters refer to each other in a cycle: "));
+	}
+}
@@ -0,0 +1,160 @@
+package org.jenkins.plugin.templateWorkflows;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+
+import org.junit.Test;
+
+public class CompiledTemplateTest {
+
+	private static final List<String> JOBS = Arrays.asList("build", "build-test", "deploy");
+
+	private static Map<String, String> map(final String... keysAndValues) {
+		final Map<String, String> ret = new HashMap<String, String>();
+		for (int i = 0; i < keysAndValues.length; i += 2) {
+			ret.put(keysAndValues[i], keysAndValues[i + 1]);
+		}
+		return ret;
+	}
+
+	private static byte[] readAll(final InputStream in, final int chunk) throws IOException {
+		final ByteArrayOutputStream out = new ByteArrayOutputStream();
+		final byte[] buffer = new byte[chunk];
+		int n;
+		while ((n = in.read(buffer, 0, chunk)) >= 0) {
+			out.write(buffer, 0, n);
+		}
+		return out.toByteArray();
+	}
+
+	private static byte[] readEachByte(final InputStream in) throws IOException {
+		final ByteArrayOutputStream out = new ByteArrayOutputStream();
+		int b;
+		while ((b = in.read()) >= 0) {
+			out.write(b);
+		}
+		return out.toByteArray();
+	}
+
+	/**
+	 * How configs were rendered before they were compiled: job names, then parameters, each with a regular expression over the whole text.
+	 */
+	private static String renderLikeBaseline(final String xml, final Map<String, String> parameters, final Map<String, String> jobNames) {
+		String jobXml = xml;
+		for (final String origJob : jobNames.keySet()) {
+			jobXml = jobXml.replaceAll(">\\s*" + origJob + "\\s*</", ">" + jobNames.get(origJob) + "</");
+			jobXml = jobXml.replaceAll(",\\s*" + origJob, "," + jobNames.get(origJob));
+			jobXml = jobXml.replaceAll(origJob + "\\s*,", jobNames.get(origJob) + ",");
+		}
+		for (final String key : parameters.keySet()) {
+			jobXml = jobXml.replaceAll("@@" + key + "@@", parameters.get(key).replace("&", "&amp;"));
+		}
+		return jobXml;
+	}
+
+	@Test
+	public void parametersAreFound() {
+		final CompiledTemplate compiled = CompiledTemplate.compile("<a>@@A@@@@B@@</a><b>@@C@@ and @@A@@</b>", JOBS);
+		assertEquals(new TreeSet<String>(Arrays.asList("A", "B", "C")), compiled.getParameters());
+	}
+
+	@Test
+	public void adjacentParameters() {
+		final CompiledTemplate compiled = CompiledTemplate.compile("<a>@@A@@@@B@@</a>", JOBS);
+		assertEquals("<a>12</a>", compiled.render(map("A", "1", "B", "2"), map()));
+	}
+
+	@Test
+	public void slotsWithoutValueAreKept() {
+		final CompiledTemplate compiled = CompiledTemplate.compile("<a>@@A@@</a><b> build </b>", JOBS);
+		assertEquals("<a>@@A@@</a><b> build </b>", compiled.render(map(), map()));
+	}
+
+	@Test
+	public void ampersandIsEscapedInParameterValues() {
+		final CompiledTemplate compiled = CompiledTemplate.compile("<a>@@A@@</a><b>build</b>", JOBS);
+		assertEquals("<a>x &amp;amp; &amp;&amp;lt;</a><b>b&amp;</b>", compiled.render(map("A", "x &amp; &&lt;"), map("build", "b&amp;")));
+	}
+
+	@Test
+	public void jobNamesArePartOfWordsOnlyWhenWhole() {
+		final CompiledTemplate compiled = CompiledTemplate.compile(
+				"<a>build-test</a><b> build </b><c>prebuild</c><d>build, build-test ,deploy</d><e>run build now</e>", JOBS);
+		assertEquals("<a>BT</a><b>B</b><c>prebuild</c><d>B,BT ,D</d><e>run build now</e>",
+				compiled.render(map(), map("build", "B", "build-test", "BT", "deploy", "D")));
+	}
+
+	@Test
+	public void streamMatchesRenderAcrossBufferEdge() throws IOException {
+		// Multi byte characters of every length, placed so that one of them straddles the 8 KB buffer edge wherever it starts.
+		final String wide = "\u00e9\u20ac\ud83d\ude00";
+		final Map<String, String> parameters = map("P", wide + wide + wide);
+		for (int pad = 8180; pad <= 8195; pad++) {
+			final StringBuilder xml = new StringBuilder();
+			for (int i = 0; i < pad; i++) {
+				xml.append('x');
+			}
+			xml.append("@@P@@").append(wide).append("<a>build</a>");
+			final CompiledTemplate compiled = CompiledTemplate.compile(xml.toString(), JOBS);
+			final Map<String, String> jobNames = map("build", "b\u00fcild");
+
+			final byte[] expected = compiled.render(parameters, jobNames).getBytes("UTF-8");
+			assertArrayEquals("pad " + pad, expected, readAll(compiled.openStream(parameters, jobNames), 8192));
+			assertArrayEquals("pad " + pad, expected, readAll(compiled.openStream(parameters, jobNames), 1000));
+			assertArrayEquals("pad " + pad, expected, readEachByte(compiled.openStream(parameters, jobNames)));
+		}
+	}
+
+	@Test
+	public void emptyTemplate() throws IOException {
+		final CompiledTemplate compiled = CompiledTemplate.compile("", JOBS);
+		assertEquals("", compiled.render(map(), map()));
+		assertEquals(0, readAll(compiled.openStream(map(), map()), 16).length);
+	}
+
+	@Test
+	public void rendersSameAsBaseline() throws IOException {
+		final String xml = "<?xml version='1.0' encoding='UTF-8'?>\n"
+				+ "<project>\n"
+				+ "  <description>Builds @@BRANCH@@ of @@REPO@@</description>\n"
+				+ "  <properties>\n"
+				+ "    <org.jenkins.plugin.templateWorkflows.TemplateWorkflowProperty>\n"
+				+ "      <templateName>T</templateName>\n"
+				+ "    </org.jenkins.plugin.templateWorkflows.TemplateWorkflowProperty>\n"
+				+ "  </properties>\n"
+				+ "  <scm class=\"hudson.scm.NullSCM\"/>\n"
+				+ "  <builders>\n"
+				+ "    <hudson.tasks.Shell>\n"
+				+ "      <command>git clone @@REPO@@ &amp;&amp; git checkout @@BRANCH@@@@SUFFIX@@</command>\n"
+				+ "    </hudson.tasks.Shell>\n"
+				+ "  </builders>\n"
+				+ "  <publishers>\n"
+				+ "    <hudson.tasks.BuildTrigger>\n"
+				+ "      <childProjects>build-test,deploy</childProjects>\n"
+				+ "    </hudson.tasks.BuildTrigger>\n"
+				+ "    <hudson.plugins.parameterizedtrigger.BuildTriggerConfig>\n"
+				+ "      <projects>\n"
+				+ "        deploy\n"
+				+ "      </projects>\n"
+				+ "    </hudson.plugins.parameterizedtrigger.BuildTriggerConfig>\n"
+				+ "  </publishers>\n"
+				+ "</project>\n";
+		final Map<String, String> parameters = map("BRANCH", "feature/\u00fcber", "REPO", "https://example.org/r?a=1&b=2", "SUFFIX", "-x");
+		final Map<String, String> jobNames = map("build", "wf1-build", "build-test", "wf1-build-test", "deploy", "wf1-deploy");
+
+		final CompiledTemplate compiled = CompiledTemplate.compile(xml, JOBS);
+		final String expected = renderLikeBaseline(xml, parameters, jobNames);
+		assertEquals(expected, compiled.render(parameters, jobNames));
+		assertArrayEquals(expected.getBytes("UTF-8"), readAll(compiled.openStream(parameters, jobNames), 4096));
+		assertEquals(new TreeSet<String>(Arrays.asList("BRANCH", "REPO", "SUFFIX")), compiled.getParameters());
+	}
+}
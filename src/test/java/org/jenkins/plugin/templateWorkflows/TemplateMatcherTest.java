@@ -0,0 +1,87 @@
+package org.jenkins.plugin.templateWorkflows;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+public class TemplateMatcherTest {
+
+	private static List<TemplateMatcher.Slot> scan(final String text, final String... jobNames) {
+		return new TemplateMatcher(Arrays.asList(jobNames)).scan(text);
+	}
+
+	private static void assertSlot(final TemplateMatcher.Slot slot, final byte kind, final String name, final String text, final String covered) {
+		assertEquals(kind, slot.kind);
+		assertEquals(name, slot.name);
+		assertEquals(covered, text.substring(slot.start, slot.end));
+	}
+
+	@Test
+	public void jobNameThatIsPartOfAnotherMatchesOnlyWhole() {
+		final String text = "<a>build-test</a><b>build</b><c>prebuild</c><d>build-test-all</d>";
+		final List<TemplateMatcher.Slot> slots = scan(text, "build", "build-test");
+		assertEquals(2, slots.size());
+		assertSlot(slots.get(0), TemplateMatcher.JOB, "build-test", text, "build-test");
+		assertSlot(slots.get(1), TemplateMatcher.JOB, "build", text, "build");
+	}
+
+	@Test
+	public void jobNamesInCommaList() {
+		final String text = "<childProjects>build, build-test ,deploy</childProjects>";
+		final List<TemplateMatcher.Slot> slots = scan(text, "build", "build-test", "deploy");
+		assertEquals(3, slots.size());
+		assertSlot(slots.get(0), TemplateMatcher.JOB, "build", text, "build");
+		assertSlot(slots.get(1), TemplateMatcher.JOB, "build-test", text, " build-test");
+		assertSlot(slots.get(2), TemplateMatcher.JOB, "deploy", text, "deploy");
+	}
+
+	@Test
+	public void jobNameIsNotMatchedInMarkupOrSentences() {
+		assertTrue(scan("<build attr=\"build\"/>", "build").isEmpty());
+		assertTrue(scan("<description>run build now</description>", "build").isEmpty());
+		assertEquals(1, scan("<a>build</a", "build").size());
+		assertTrue(scan("<a>build<b/></a>", "build").isEmpty());
+	}
+
+	@Test
+	public void whitespaceAroundWholeTextIsPartOfTheSlot() {
+		final String text = "<a>\n  build \n</a>";
+		final List<TemplateMatcher.Slot> slots = scan(text, "build");
+		assertEquals(1, slots.size());
+		assertSlot(slots.get(0), TemplateMatcher.JOB, "build", text, "\n  build \n");
+	}
+
+	@Test
+	public void adjacentParameters() {
+		final String text = "<a>@@A@@@@B@@</a>";
+		final List<TemplateMatcher.Slot> slots = scan(text);
+		assertEquals(2, slots.size());
+		assertSlot(slots.get(0), TemplateMatcher.PARAMETER, "A", text, "@@A@@");
+		assertSlot(slots.get(1), TemplateMatcher.PARAMETER, "B", text, "@@B@@");
+	}
+
+	@Test
+	public void parameterSharingItsDelimiterIsMatchedOnce() {
+		final String text = "@@A@@B@@";
+		final List<TemplateMatcher.Slot> slots = scan(text);
+		assertEquals(1, slots.size());
+		assertSlot(slots.get(0), TemplateMatcher.PARAMETER, "A", text, "@@A@@");
+	}
+
+	@Test
+	public void parameterDoesNotSpanLines() {
+		assertTrue(scan("@@A\n@@").isEmpty());
+	}
+
+	@Test
+	public void parameterWinsOverJobName() {
+		final String text = "<a>@@build@@</a>";
+		final List<TemplateMatcher.Slot> slots = scan(text, "build");
+		assertEquals(1, slots.size());
+		assertSlot(slots.get(0), TemplateMatcher.PARAMETER, "build", text, "@@build@@");
+	}
+}